@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Adaptive Replacement Cache eviction (Megiddo and Modha, FAST '03).
+ * Resident pages are split between T1, pages seen once recently, and T2,
+ * pages seen at least twice.  Ghost lists B1 and B2 remember the ids of
+ * pages recently evicted from T1 and T2.  A miss that hits in B1 means T1
+ * was too small, so the target size p of T1 grows; a miss that hits in B2
+ * shrinks it.  Scans only pass through T1, so they cannot flush T2.
+ * <p>
+ * Because the cache asks for a victim before it admits the new page, the
+ * REPLACE step does not know whether the incoming page is in B2; the
+ * paper's tie-break for |T1| == p in that case is not applied.
+ */
+public class ArcPolicy implements EvictionPolicy {
+
+    private final int c;
+    private int p = 0;
+
+    // all four lists are LRU first, MRU last
+    private final LinkedHashMap<PageId, Boolean> t1 = new LinkedHashMap<PageId, Boolean>();
+    private final LinkedHashMap<PageId, Boolean> t2 = new LinkedHashMap<PageId, Boolean>();
+    private final LinkedHashMap<PageId, Boolean> b1 = new LinkedHashMap<PageId, Boolean>();
+    private final LinkedHashMap<PageId, Boolean> b2 = new LinkedHashMap<PageId, Boolean>();
+
+    /**
+     * @param numPages the capacity of the cache this policy serves
+     */
+    public ArcPolicy(int numPages) {
+        if (numPages < 1)
+            throw new IllegalArgumentException(String.valueOf(numPages));
+        this.c = numPages;
+    }
+
+    public String getName() {
+        return "ARC";
+    }
+
+    /** Returns the current target size of T1, for testing. */
+    synchronized int getTarget() {
+        return p;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        if (t1.remove(pid) != null || t2.remove(pid) != null)
+            t2.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (t1.containsKey(pid) || t2.containsKey(pid))
+            return;
+
+        if (b1.remove(pid) != null) {
+            p = Math.min(c, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            t2.put(pid, Boolean.TRUE);
+        } else if (b2.remove(pid) != null) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            t2.put(pid, Boolean.TRUE);
+        } else {
+            // keep the directory at no more than 2c entries, T1 + B1 at c
+            if (t1.size() + b1.size() >= c && !b1.isEmpty())
+                removeFirst(b1);
+            else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * c && !b2.isEmpty())
+                removeFirst(b2);
+            t1.put(pid, Boolean.TRUE);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        t1.remove(pid);
+        t2.remove(pid);
+    }
+
+    public synchronized PageId evict(PageCache cache) throws DbException {
+        boolean fromT1 = !t1.isEmpty() && (t1.size() > p || t2.isEmpty());
+
+        PageId victim = fromT1 ? evictFrom(t1, b1, cache) : evictFrom(t2, b2, cache);
+        if (victim == null)
+            victim = fromT1 ? evictFrom(t2, b2, cache) : evictFrom(t1, b1, cache);
+        if (victim == null)
+            throw new DbException("Could not evict page: all pages are dirty");
+        return victim;
+    }
+
+    // caller must hold the lock on this
+    private PageId evictFrom(LinkedHashMap<PageId, Boolean> list,
+                             LinkedHashMap<PageId, Boolean> ghosts, PageCache cache) {
+        PageId victim = TwoQueuePolicy.removeFirstEvictable(list, cache);
+        if (victim != null) {
+            ghosts.put(victim, Boolean.TRUE);
+            if (ghosts.size() > c)
+                removeFirst(ghosts);
+        }
+        return victim;
+    }
+
+    private static void removeFirst(LinkedHashMap<PageId, Boolean> list) {
+        Iterator<PageId> it = list.keySet().iterator();
+        it.next();
+        it.remove();
+    }
+}
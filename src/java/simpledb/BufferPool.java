@@ -2,6 +2,8 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -11,6 +13,11 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Those locks isolate transactions.  Threads sharing a page are kept from
+ * seeing it half changed by the page's latch instead (see
+ * {@link Page#latch}), which is held only for one operation; the
+ * BufferPool itself takes no pool-wide lock.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -21,29 +28,116 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private BufferPoolHelper theBufferPool;
+    /** Default fraction of the pool a scanned table must exceed before the
+    scan uses a private BufferRing instead of the shared pool. */
+    public static final double DEFAULT_SCAN_RING_THRESHOLD = 1.0;
+
+    /** Default largest number of pages a sequential scan reads ahead. */
+    public static final int DEFAULT_READ_AHEAD = 32;
+
+    private PageCache theBufferPool;
     private int maxNumPages;
     private LockManager manager;
+    private volatile double scanRingThreshold = DEFAULT_SCAN_RING_THRESHOLD;
+    private final Prefetcher prefetcher = new Prefetcher(Prefetcher.DEFAULT_THREADS);
+    private volatile int readAheadLimit =
+        Integer.getInteger("simpledb.ReadAhead", DEFAULT_READ_AHEAD);
+    private final Set<Integer> recordLockedTables =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final VersionStore versions = new VersionStore();
+    private volatile boolean snapshotReads = Boolean.getBoolean("simpledb.SnapshotReads");
+    private final OptimisticManager occ = new OptimisticManager();
+    private volatile boolean optimistic = Boolean.getBoolean("simpledb.Optimistic");
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages.  The eviction
+     * policy is chosen by the simpledb.EvictionPolicy system property (see
+     * {@link #newEvictionPolicy}), and defaults to CLOCK.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, newEvictionPolicy(
+                System.getProperty("simpledb.EvictionPolicy"), numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose which page to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the eviction policy; must have been created for a cache
+     *   of numPages pages
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         if(numPages < 1)
             throw new IllegalArgumentException(String.valueOf(numPages));
         else{
             maxNumPages = numPages;
-            this.theBufferPool = new BufferPoolHelper(numPages);
+            this.theBufferPool = new PageCache(numPages, policy);
             manager = new LockManager();
         }
     }
 
+    /**
+     * Creates an eviction policy by name for a pool of numPages pages.
+     * Recognized names (case insensitive) are lru, clock, 2q, lru-k
+     * (LRU-2) and arc; null selects clock.
+     *
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static EvictionPolicy newEvictionPolicy(String name, int numPages) {
+        if (name == null || name.equalsIgnoreCase("clock"))
+            return new ClockPolicy(numPages);
+        else if (name.equalsIgnoreCase("lru"))
+            return new LruPolicy();
+        else if (name.equalsIgnoreCase("2q"))
+            return new TwoQueuePolicy(numPages);
+        else if (name.equalsIgnoreCase("lru-k") || name.equalsIgnoreCase("lruk"))
+            return new LruKPolicy(numPages);
+        else if (name.equalsIgnoreCase("arc"))
+            return new ArcPolicy(numPages);
+        else
+            throw new IllegalArgumentException("unknown eviction policy: " + name);
+    }
+
+    /** Return the policy this buffer pool uses to choose eviction victims */
+    public EvictionPolicy getEvictionPolicy() {
+        return theBufferPool.getPolicy();
+    }
+
+    /** Return the number of getPage calls that found their page resident */
+    public long getHitCount() {
+        return theBufferPool.getHits();
+    }
+
+    /** Return the number of getPage calls that had to read their page */
+    public long getMissCount() {
+        return theBufferPool.getMisses();
+    }
+
+    /** Return the number of pages evicted to make room for others */
+    public long getEvictionCount() {
+        return theBufferPool.getEvictions();
+    }
+
+    /** Return the fraction of getPage calls that were hits */
+    public double getHitRatio() {
+        return theBufferPool.getHitRatio();
+    }
+
+    /** Reset the hit, miss and eviction counters */
+    public void resetCacheStats() {
+        theBufferPool.resetStats();
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction.  With snapshot reads on, READ_ONLY takes no lock and
+     * returns the page as of the transaction's snapshot instead (see
+     * {@link #setSnapshotReads}).  In optimistic mode no locks are taken
+     * (see {@link #setOptimistic}).
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -57,22 +151,385 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
 
-        if(perm == Permissions.READ_WRITE)
+    /**
+     * Retrieve the specified page with the associated permissions on behalf
+     * of a scan.  Locking and lookup are as for
+     * {@link #getPage(TransactionId, PageId, Permissions)}, but if the page
+     * is not resident and ring is not null, the page is read into the ring
+     * rather than the buffer pool, so no other page is evicted.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's private ring, or null to use the buffer pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+
+        if(optimistic)
+            return optimisticPage(tid, pid, perm, ring);
+        if(perm == Permissions.READ_WRITE) {
             this.manager.addWriteLock(tid, pid);
+            // first committer wins: the lock keeps others from committing
+            // the page before tid does, so checking now is as good as
+            // checking at tid's commit
+            if(isSnapshotRead(pid) && versions.committedSince(pid, versions.snapshotOf(tid)))
+                throw new TransactionAbortedException();
+        }
+        else if(isSnapshotRead(pid)) {
+            // tid reads its own writes
+            if(!this.manager.holdsWriteLock(tid, pid))
+                return snapshotPage(tid, pid, ring);
+        }
         else
             this.manager.addReadLock(tid,pid);
 
+        return fetchPage(pid, ring);
+    }
+
+    /**
+     * Returns the version of a page that tid's snapshot sees: a saved
+     * version if the page was committed since the snapshot was taken, and
+     * otherwise the before image of the current page, which writers with
+     * uncommitted changes to it do not touch.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, BufferRing ring)
+        throws DbException {
+        Page old = versions.versionAt(pid, versions.snapshotOf(tid));
+        if(old != null)
+            return old;
+        Page page = fetchPage(pid, ring);
+        if(page instanceof HeapPage)
+            return ((HeapPage) page).getCommittedImage();
+        return page.getBeforeImage();
+    }
+
+    /**
+     * Returns the page for an optimistic transaction: its own copy if it
+     * has written the page, the shared page if it only reads it, and
+     * otherwise a new private copy for it to change.
+     */
+    private Page optimisticPage(TransactionId tid, PageId pid, Permissions perm,
+            BufferRing ring) throws DbException {
+        Page copy = occ.read(tid, pid);
+        if(copy != null)
+            return copy;
+        // the pool only holds committed pages, which are replaced rather
+        // than changed when a commit installs new ones
+        Page page = fetchPage(pid, ring);
+        if(perm == Permissions.READ_ONLY)
+            return page;
+        copy = page.getBeforeImage();
+        occ.write(tid, copy);
+        return copy;
+    }
+
+    /**
+     * Sets whether transactions run optimistically.  When on, transactions
+     * take no locks: they read committed pages, change private copies of
+     * the pages they write, and at commit are validated against the
+     * transactions that committed since they started.  A transaction
+     * that passes has its copies installed in the pool and written to
+     * disk by {@link #installWrites}; one that fails must abort.  Suits
+     * many short transactions that seldom touch the same pages, for which
+     * locking costs more than the occasional retry.  Record locking and
+     * snapshot reads do not apply while it is on.  The default is the
+     * value of the simpledb.Optimistic system property, or off.
+     * <p>
+     * Set this only while no transactions are running.
+     */
+    public void setOptimistic(boolean enabled) {
+        this.optimistic = enabled;
+    }
+
+    /** Return true if transactions run optimistically */
+    public boolean isOptimistic() {
+        return optimistic;
+    }
+
+    /** Return the read sets and buffered writes of optimistic transactions */
+    public OptimisticManager getOptimisticManager() {
+        return occ;
+    }
+
+    /**
+     * Validates an optimistic transaction that is about to commit and, if
+     * it passes, installs the pages it changed in the pool and writes them
+     * to disk.  Does nothing for transactions that are not optimistic.
+     *
+     * @throws TransactionAbortedException if the transaction read a page
+     *   that another transaction has committed since it started; it must
+     *   then abort
+     */
+    public void installWrites(TransactionId tid)
+        throws IOException, TransactionAbortedException {
+        if(!optimistic)
+            return;
+        // validation and installation are one step, taken by one
+        // transaction at a time
+        synchronized(occ) {
+            List<Page> changed = occ.validate(tid);
+            try {
+                List<PageId> pids = new ArrayList<PageId>();
+                for(Page page : changed) {
+                    prefetcher.invalidate(page.getId());
+                    this.theBufferPool.put(page.getId(), page);
+                    pids.add(page.getId());
+                }
+                writePages(pids);
+            } catch(DbException e) {
+                throw new IOException(e.toString());
+            } finally {
+                occ.installed(changed);
+            }
+        }
+    }
+
+    /** Return true if READ_ONLY requests for the page read snapshots */
+    private boolean isSnapshotRead(PageId pid) {
+        return snapshotReads && !recordLockedTables.contains(pid.getTableId());
+    }
+
+    /**
+     * Sets whether transactions read snapshots (multi-version concurrency
+     * control).  When on, a transaction sees the database as of its first
+     * request to the buffer pool, reads without locks, and so never waits
+     * for writers nor makes them wait.  Writers still lock the pages they
+     * change, and a transaction that writes a page another transaction
+     * committed after its snapshot was taken is aborted, which gives
+     * snapshot isolation.  Tables with record locking keep locked reads.
+     * The default is the value of the simpledb.SnapshotReads system
+     * property, or off.
+     * <p>
+     * Set this only while no transactions are running.
+     */
+    public void setSnapshotReads(boolean enabled) {
+        this.snapshotReads = enabled;
+    }
+
+    /** Return true if transactions read snapshots */
+    public boolean isSnapshotReads() {
+        return snapshotReads;
+    }
+
+    /** Return the store of old page versions kept for snapshot reads */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a transaction that locks
+     * records of it rather than the page itself.  Takes an intention lock
+     * on the page (exclusive for READ_WRITE), which conflicts with other
+     * transactions' shared and exclusive page locks but not with each
+     * other, so transactions locking different records may share the page.
+     * The caller must lock the records it uses (see {@link #lockRecord}),
+     * and hold the page's latch while it reads or changes the page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page's records
+     * @see HeapPage#latch
+     */
+    public Page getPageForRecords(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        this.manager.addIntentionLock(tid, pid, perm == Permissions.READ_WRITE);
+        return fetchPage(pid, null);
+    }
+
+    /**
+     * Locks a record on behalf of a transaction, exclusively for READ_WRITE
+     * and shared otherwise, after the intention locks on its page and
+     * table.  May block if the lock cannot be acquired.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        this.manager.addRecordLock(tid, rid, perm == Permissions.READ_WRITE);
+    }
+
+    /**
+     * Locks a record exclusively on behalf of a transaction if that can be
+     * done without waiting, and returns true if the transaction now holds
+     * the lock.  The transaction must already have fetched the record's
+     * page with getPageForRecords and READ_WRITE.
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return this.manager.tryRecordLock(tid, rid);
+    }
+
+    /**
+     * Sets whether inserts into and deletes from a table lock the records
+     * they change instead of whole pages, so that transactions changing
+     * different tuples of a page do not wait for each other.  Worth it for
+     * tables whose writes concentrate on a few pages.
+     */
+    public void setRecordLocking(int tableId, boolean enabled) {
+        if (enabled)
+            recordLockedTables.add(tableId);
+        else
+            recordLockedTables.remove(tableId);
+    }
+
+    /** Return true if writes to the given table take record locks */
+    public boolean isRecordLocking(int tableId) {
+        return !optimistic && recordLockedTables.contains(tableId);
+    }
+
+    /**
+     * Returns the page, from the pool or the ring if it is resident, and
+     * otherwise read into the ring if there is one and the pool if not.
+     */
+    private Page fetchPage(PageId pid, BufferRing ring) throws DbException {
         Page readPage = theBufferPool.get(pid);
         if(readPage != null)
             return readPage;
+        else if(ring != null) {
+            readPage = ring.get(pid);
+            if(readPage == null) {
+                readPage = readPage(pid);
+                ring.add(readPage);
+            }
+            return readPage;
+        }
         else{
-            Page newpage = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
-            theBufferPool.put(pid, newpage);
-            return newpage;
+            // another transaction may read the same page concurrently; keep
+            // whichever copy made it into the cache first
+            Page newpage = readPage(pid);
+            return theBufferPool.putIfAbsent(pid, newpage);
         }
     }
 
+    /**
+     * Reads a page that is not resident, using the prefetched copy if
+     * there is one.
+     */
+    private Page readPage(PageId pid) {
+        Page page = prefetcher.take(pid);
+        if (page == null)
+            page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+        return page;
+    }
+
+    /**
+     * Returns a ReadAhead for a sequential scan of the numPages pages of
+     * the given table, or null if read-ahead is disabled or the pool or
+     * the table is too small for it to help.  Read-ahead keeps at most a
+     * quarter of the pool's worth of pages, and at most the read-ahead
+     * limit.
+     *
+     * @see #setReadAheadLimit
+     */
+    public ReadAhead newReadAhead(int tableId, int numPages) {
+        int window = Math.min(readAheadLimit, Math.min(maxNumPages / 4, numPages - 1));
+        if (window < ReadAhead.MIN_WINDOW)
+            return null;
+        return new ReadAhead(this, tableId, numPages, window);
+    }
+
+    /**
+     * Sets the largest number of pages a sequential scan keeps reading
+     * ahead; 0 disables read-ahead.  The default is DEFAULT_READ_AHEAD, or
+     * the value of the simpledb.ReadAhead system property.
+     */
+    public void setReadAheadLimit(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException(String.valueOf(pages));
+        this.readAheadLimit = pages;
+    }
+
+    /** Return the largest number of pages a scan reads ahead */
+    public int getReadAheadLimit() {
+        return readAheadLimit;
+    }
+
+    /** Return the lock manager that holds the page locks of transactions */
+    public LockManager getLockManager() {
+        return manager;
+    }
+
+    /** Return the prefetcher that reads pages ahead of scans */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Starts reading pid in the background if it is not resident.
+     */
+    void prefetch(PageId pid) {
+        if (theBufferPool.peek(pid) == null)
+            prefetcher.prefetch(pid);
+    }
+
+    /**
+     * Returns a private BufferRing for a sequential scan of numPages pages
+     * if the scan is large enough to flood the pool, that is, if it reads
+     * more than the scan ring threshold times the pool size.  Otherwise
+     * returns null, and the scan should use the buffer pool as usual.
+     * <p>
+     * A ring's pages are held in addition to the pool's, so a ring is at
+     * most an eighth of the pool; pools of fewer than eight pages get no
+     * ring, and scans of them must find room in the pool.
+     *
+     * @param numPages the number of pages the scan will read
+     * @see #setScanRingThreshold
+     */
+    public BufferRing newScanRing(int numPages) {
+        int ringPages = Math.min(BufferRing.DEFAULT_PAGES, maxNumPages / 8);
+        if (ringPages == 0 || numPages <= scanRingThreshold * maxNumPages)
+            return null;
+        return new BufferRing(ringPages);
+    }
+
+    /**
+     * Sets the fraction of the pool size above which sequential scans read
+     * through a private BufferRing.  For example, 0.25 makes any scan of
+     * more than a quarter of the pool use a ring.
+     */
+    public void setScanRingThreshold(double fraction) {
+        if (fraction < 0)
+            throw new IllegalArgumentException(String.valueOf(fraction));
+        this.scanRingThreshold = fraction;
+    }
+
+    /** Return the scan ring threshold, as a fraction of the pool size */
+    public double getScanRingThreshold() {
+        return scanRingThreshold;
+    }
+
+    /**
+     * Locks a whole table on behalf of a transaction, shared for
+     * READ_ONLY and exclusive for READ_WRITE.  The transaction's later
+     * page requests on the table that the table lock covers take no page
+     * locks.  May block if the lock cannot be acquired.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm the requested permissions on the table's pages
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        manager.lockTable(tid, tableId, perm == Permissions.READ_WRITE
+                ? LockManager.LockMode.X : LockManager.LockMode.S);
+    }
+
+    /**
+     * Takes a shared table lock for a scan of the numPages pages of the
+     * given table, if the scan would otherwise take more page locks than
+     * the lock manager's escalation threshold.  Snapshot reads and
+     * optimistic transactions take no locks.
+     */
+    public void lockTableForScan(TransactionId tid, int tableId, int numPages)
+        throws TransactionAbortedException {
+        if (optimistic || snapshotReads && !recordLockedTables.contains(tableId))
+            return;
+        int threshold = manager.getEscalationThreshold();
+        if (threshold > 0 && numPages > threshold)
+            manager.lockTable(tid, tableId, LockManager.LockMode.S);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -84,8 +541,7 @@ public class BufferPool {
      */
     public void releasePage(TransactionId tid, PageId pid) {
         //System.out.println("releasing page " + pid.pageNumber() + " by " + tid.getId());
-        this.manager.removeReadLock(tid, pid);
-        this.manager.removewriteLock(tid, pid);
+        this.manager.release(tid, pid);
     }
 
     /**
@@ -104,7 +560,8 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  An optimistic transaction that wrote pages must
+     * have them installed by {@link #installWrites} before it commits.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -112,32 +569,107 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
 
-        if(commit)
+        if(optimistic) {
+            // an abort just drops the private copies
+            if(commit && occ.hasWrites(tid))
+                throw new IllegalStateException("writes of " + tid.getId()
+                        + " were not installed");
+            occ.end(tid);
+            return;
+        }
+        if(commit) {
            flushPages(tid);
+           commitSlots(tid);
+        }
         else {
-            Iterator<Page> theIterator = this.theBufferPool.iterator();
-            while(theIterator.hasNext()) {
-                Page page = theIterator.next();
-                PageId pid = page.getId();
-
+            // pages are only dirtied under an exclusive lock, so only those
+            // pages can need their before image restored
+            for (PageId pid : manager.exclusivePages(tid)) {
+                Page page = this.theBufferPool.peek(pid);
+                if (page == null)
+                    continue;
+                if (page instanceof HeapPage && ((HeapPage) page).hasSlotChanges(tid)) {
+                    undoSlots(tid, (HeapPage) page);
+                    restoredSpace(page);
+                    continue;
+                }
+                if (page.isDirty() != tid)
+                    continue;
+                Page before = page.getBeforeImage();
                 try {
-                    if(page.isDirty() == tid)
-                        this.theBufferPool.put(pid, page.getBeforeImage());
+                    this.theBufferPool.put(pid, before);
                 } catch (DbException e) {
                     e.printStackTrace();
                 }
-           }
+                restoredSpace(before);
+            }
         }
 
-        Iterator<Page> theIterator = this.theBufferPool.iterator();
-        while(theIterator.hasNext()) {
-            Page page = theIterator.next();
-            PageId pid = page.getId();
-            if(manager.holdsReadLock(tid,pid) || manager.holdsWriteLock(tid, pid))
-                releasePage(tid, page.getId());
+        // scans may hold locks on pages read through a ring, which are not
+        // in the pool
+        manager.releaseAll(tid);
+        versions.release(tid);
+    }
+
+    /**
+     * Forgets how to undo tid's record-locked changes, which have been
+     * written, and marks the pages they were on clean unless other
+     * transactions have changes pending on them.
+     */
+    private void commitSlots(TransactionId tid) {
+        for (PageId pid : manager.exclusivePages(tid)) {
+            Page page = this.theBufferPool.peek(pid);
+            if (!(page instanceof HeapPage) || !((HeapPage) page).hasSlotChanges(tid))
+                continue;
+            HeapPage heapPage = (HeapPage) page;
+            heapPage.latch().writeLock().lock();
+            try {
+                heapPage.commitSlots(tid);
+                TransactionId other = heapPage.slotWriter();
+                heapPage.markDirty(other != null, other);
+            } finally {
+                heapPage.latch().writeLock().unlock();
+            }
         }
     }
 
+    /**
+     * Records in its file's free-space map whether a page an abort has
+     * restored has room.  The map was told when the aborted transaction
+     * filled the page, which may not have been written since.
+     */
+    private void restoredSpace(Page page) throws IOException {
+        if (!(page instanceof HeapPage))
+            return;
+        DbFile file = Database.getCatalog().getDbFile(page.getId().getTableId());
+        if (file instanceof HeapFile)
+            ((HeapFile) file).updateFreeSpace(page.getId().pageNumber(),
+                    ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    /**
+     * Undoes tid's record-locked changes to a page that other transactions
+     * may be changing too, so its before image cannot be restored.  A
+     * commit of one of them may have written tid's changes to disk, so
+     * the page is written back unless another writer's commit will do it.
+     * The write is not logged: rollback logs CLRs for tid's slots, and a
+     * transaction that is not in the log has nothing to undo on restart.
+     */
+    private void undoSlots(TransactionId tid, HeapPage page) throws IOException {
+        TransactionId other;
+        page.latch().writeLock().lock();
+        try {
+            page.undoSlots(tid);
+            other = page.slotWriter();
+            if (other != null)
+                page.markDirty(true, other);
+        } finally {
+            page.latch().writeLock().unlock();
+        }
+        if (other == null)
+            flushPage(page.getId(), true);
+    }
+
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock 
@@ -162,7 +694,10 @@ public class BufferPool {
             for(int i=0; i<pagesList.size(); i++) {
                 Page page = pagesList.get(i);
                 page.markDirty(true,tid);
-                this.theBufferPool.put(page.getId(),page);
+                prefetcher.invalidate(page.getId());
+                // an optimistic transaction's pages are its private copies
+                if(!optimistic)
+                    this.theBufferPool.put(page.getId(),page);
             }
         } catch(IOException e) {
             e.printStackTrace();
@@ -189,14 +724,19 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDbFile(tableId);
         Page page = file.deleteTuple(tid, t);
         page.markDirty(true,tid);
+        prefetcher.invalidate(page.getId());
     }
 
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     *     break simpledb if running in NO STEAL mode.  The updates of
+     *     transactions in the log are logged first, so that LogFile can
+     *     undo them if the transactions abort.  A page written here keeps
+     *     its before image, which an abort restores; flushPages sets it
+     *     when the transaction commits.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         Iterator<Page> theIterator = this.theBufferPool.iterator();
 
         while(theIterator.hasNext()) {
@@ -204,9 +744,18 @@ public class BufferPool {
             PageId pid = page.getId();
             DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
 
-            if (page.isDirty() != null) {
-                page.markDirty(false, page.isDirty());
-                file.writePage(page);
+            Lock latch = page.latch().writeLock();
+            latch.lock();
+            try {
+                if (page.isDirty() != null) {
+                    logWrite(page);
+                    Database.getLogFile().sync(page.getLSN());
+                    page.markDirty(false, page.isDirty());
+                    prefetcher.invalidate(pid);
+                    file.writePage(page);
+                }
+            } finally {
+                latch.unlock();
             }
         }
     }
@@ -216,43 +765,217 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
+        prefetcher.invalidate(pid);
+        Page page = this.theBufferPool.peek(pid);
         this.theBufferPool.remove(pid);
+        // the free-space map may say the dropped changes filled the page.
+        // Saying a full page has room only costs an insert a look at it
+        if (page instanceof HeapPage && page.isDirty() != null) {
+            DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+            try {
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).updateFreeSpace(pid.pageNumber(), true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Restores a page tid changed to a before image read from the log, for
+     * LogFile.rollback: the image is written, and the pool's copy of the
+     * page dropped.  A page tid changed under record locks may hold other
+     * transactions' changes too, so only tid's slots are restored, in the
+     * pool; these are exactly the slots of tid's log records for the page,
+     * so the CLRs rollback logs for them cover the same slots.
+     *
+     * @return false if tid's slots were restored instead of the image
+     */
+    boolean restorePage(TransactionId tid, Page before) throws IOException {
+        PageId pid = before.getId();
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        Page page = this.theBufferPool.peek(pid);
+        if (page == null) {
+            prefetcher.invalidate(pid);
+            file.writePage(before);
+            return true;
+        }
+        if (page instanceof HeapPage && ((HeapPage) page).hasSlotChanges(tid)) {
+            undoSlots(tid, (HeapPage) page);
+            restoredSpace(page);
+            return false;
+        }
+        Lock latch = page.latch().writeLock();
+        latch.lock();
+        try {
+            file.writePage(before);
+            prefetcher.invalidate(pid);
+            this.theBufferPool.remove(pid);
+        } finally {
+            latch.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Logs the update of a page about to be written, if the transaction
+     * that dirtied it is in the log, and sets the page's LSN to the
+     * record's.  Each transaction with record-locked changes on the page
+     * gets a record of its own slots, so that undoing one transaction's
+     * update leaves the others' slots alone.  Called with the page latched.
+     */
+    private void logWrite(Page page) throws IOException {
+        LogFile log = Database.getLogFile();
+        if (page instanceof HeapPage && ((HeapPage) page).slotWriter() != null) {
+            HeapPage heapPage = (HeapPage) page;
+            HeapPage before = (HeapPage) page.getBeforeImage();
+            for (TransactionId writer : heapPage.slotWriters()) {
+                if (log.isActive(writer))
+                    page.setLSN(log.logWrite(writer, before, heapPage,
+                            heapPage.changedSlots(writer)));
+            }
+            return;
+        }
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null || !log.isActive(dirtier))
+            return;
+        page.setLSN(log.logWrite(dirtier, page.getBeforeImage(), page));
     }
 
     /**                                          // some code goes here
         // not necessary for proj1
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, holding its latch so that nothing
+     * changes it while it is written.  Pages are latched one at a time,
+     * so flushes of different pages proceed in parallel.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
-        Page page = this.theBufferPool.get(pid);
+    private void flushPage(PageId pid) throws IOException {
+        flushPage(pid, false);
+    }
 
-        page.markDirty(false, page.isDirty());
-        file.writePage(page);
+    /**
+     * Flushes a page as flushPage(pid) does.
+     * @param logged true if the page's update has been logged already
+     */
+    private void flushPage(PageId pid, boolean logged) throws IOException {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        Page page = this.theBufferPool.peek(pid);
+        Lock latch = page.latch().writeLock();
+        latch.lock();
+        try {
+            if (!logged)
+                logWrite(page);
+            Database.getLogFile().sync(page.getLSN());
+            // a page other transactions still have record-locked changes
+            // on stays dirty, so it is not evicted before they complete
+            TransactionId other = page instanceof HeapPage
+                ? ((HeapPage) page).slotWriter() : null;
+            page.markDirty(other != null, other);
+            prefetcher.invalidate(pid);
+            file.writePage(page);
+            page.setBeforeImage();
+        } finally {
+            latch.unlock();
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * With snapshot reads on, this is tid's commit: it is numbered, and
+     * the committed versions the pages had before are kept for as long as
+     * older snapshots need them.
+     * <p>
+     * A page flushAllPages wrote for a checkpoint is clean but still has
+     * the before image from before tid changed it; its before image is
+     * set here, as if it had been written, so that snapshot readers and
+     * a later abort of another writer see tid's changes.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        Iterator<Page> theIterator = this.theBufferPool.iterator();
+    public void flushPages(TransactionId tid) throws IOException {
+        List<PageId> written = new ArrayList<PageId>();
+        List<PageId> stolen = new ArrayList<PageId>();
+        for (PageId pid : manager.exclusivePages(tid)) {
+            Page page = this.theBufferPool.peek(pid);
+            if (page == null)
+                continue;
+            // a page tid changed under record locks may have been dirtied
+            // last by another record writer
+            if (page.isDirty() == tid || (page instanceof HeapPage
+                    && ((HeapPage) page).hasSlotChanges(tid)))
+                written.add(pid);
+            else if (page.isDirty() == null && page instanceof HeapPage
+                    && ((HeapPage) page).isModified())
+                stolen.add(pid);
+        }
+        if (!snapshotReads || written.isEmpty() && stolen.isEmpty()) {
+            writePages(written);
+            rebase(stolen);
+            return;
+        }
 
-        while (theIterator.hasNext()) {
-            Page page = theIterator.next();
-            PageId pid = page.getId();
+        // every old version is saved before any new one is written, so a
+        // snapshot reader never sees part of the commit
+        long commit = versions.beginCommit(tid);
+        try {
+            for (PageId pid : written) {
+                if (!recordLockedTables.contains(pid.getTableId()))
+                    versions.saveVersion(tid, theBufferPool.peek(pid), commit);
+            }
+            for (PageId pid : stolen) {
+                if (!recordLockedTables.contains(pid.getTableId()))
+                    versions.saveVersion(tid, theBufferPool.peek(pid), commit);
+            }
+            writePages(written);
+            rebase(stolen);
+        } finally {
+            versions.endCommit(commit);
+        }
+    }
 
-            if(page.isDirty() == tid)
-                flushPage(pid);
+    /**
+     * Sets the before images of pages a committing transaction changed
+     * that are already on disk, written by a checkpoint.  The transaction
+     * holds their locks, so nothing has changed them since.
+     */
+    private void rebase(List<PageId> pids) {
+        for (PageId pid : pids)
+            this.theBufferPool.peek(pid).setBeforeImage();
+    }
+
+    /**
+     * Flushes pages a committing transaction changed.  Their updates are
+     * logged first, so the log is written and forced once for all of
+     * them rather than once per page.  A page changed under record locks
+     * is only logged as it is written, since other transactions may
+     * change it until it is latched.
+     */
+    private void writePages(List<PageId> pids) throws IOException {
+        Set<PageId> logged = new HashSet<PageId>();
+        for (PageId pid : pids) {
+            Page page = this.theBufferPool.peek(pid);
+            Lock latch = page.latch().writeLock();
+            latch.lock();
+            try {
+                if (page instanceof HeapPage && ((HeapPage) page).slotWriter() != null)
+                    continue;
+                logWrite(page);
+                logged.add(pid);
+            } finally {
+                latch.unlock();
+            }
         }
+        for (PageId pid : pids)
+            flushPage(pid, logged.contains(pid));
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized void evictPage() throws DbException {
-        //need to evict page whenever: get() or put()
+    private void evictPage() throws DbException {
+        // NO STEAL: the page cache only ever picks clean victims, so there
+        // is nothing to write back here
+        this.theBufferPool.evict();
     }
 
 }
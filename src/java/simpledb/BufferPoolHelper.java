@@ -4,6 +4,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The original list-based page table of the BufferPool.  Every access is
+ * linear in the number of resident pages; it has been replaced by
+ * {@link PageCache} and is kept as the baseline for PageCacheBenchmark.
+ */
 public class BufferPoolHelper {
 
     private int maxPages;
@@ -0,0 +1,58 @@
+package simpledb;
+
+/**
+ * BufferRing is a small private set of page buffers used by a single large
+ * sequential scan, in the spirit of PostgreSQL's BufferAccessStrategy.
+ * Pages the scan reads from disk are kept here, and recycled in FIFO
+ * order, instead of being admitted to the shared page cache, so a scan of
+ * a table larger than the pool does not evict every other transaction's
+ * pages.  Pages that are already resident in the BufferPool are still
+ * served from there.
+ * <p>
+ * A ring is used by one iterator at a time and is not thread-safe.
+ *
+ * @see BufferPool#newScanRing
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    /** Default number of pages in a ring. */
+    public static final int DEFAULT_PAGES = 16;
+
+    private final Page[] slots;
+    private int next = 0;
+
+    /**
+     * Creates an empty ring of numPages buffers.
+     */
+    public BufferRing(int numPages) {
+        if (numPages < 1)
+            throw new IllegalArgumentException(String.valueOf(numPages));
+        this.slots = new Page[numPages];
+    }
+
+    /**
+     * Returns the page with the given id if it is in the ring, or null.
+     */
+    public Page get(PageId pid) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null && slots[i].getId().equals(pid))
+                return slots[i];
+        }
+        return null;
+    }
+
+    /**
+     * Adds a page to the ring, replacing the page that has been in the
+     * ring longest if it is full.
+     */
+    public void add(Page page) {
+        slots[next] = page;
+        next = (next + 1) % slots.length;
+    }
+
+    /** Returns the number of buffers in this ring. */
+    public int size() {
+        return slots.length;
+    }
+}
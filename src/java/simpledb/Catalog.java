@@ -17,6 +17,7 @@ import java.util.*;
 public class Catalog {
 
     private HashMap<Integer,ArrayList<Object>> theMap;
+    private FileHandleCache fileHandles;
 
     /**
      * Constructor.
@@ -24,6 +25,14 @@ public class Catalog {
      */
     public Catalog() {
         theMap = new HashMap<Integer, ArrayList<Object>>();
+        fileHandles = new FileHandleCache();
+    }
+
+    /**
+     * Returns the cache of open file handles shared by the tables' DbFiles.
+     */
+    public FileHandleCache getFileHandles() {
+        return fileHandles;
     }
 
     /**
@@ -137,9 +146,10 @@ public class Catalog {
         return (String) aList.get(1);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, and close their files */
     public void clear() {
         theMap.clear();
+        fileHandles.closeAll();
     }
     
     /**
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) eviction.  Each resident page occupies a frame of
+ * a ring with a reference bit.  A hit only sets the bit, without taking any
+ * lock, which makes CLOCK the cheapest policy on the hit path; the hand
+ * sweeps the ring clearing bits until it finds an unreferenced clean page.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    static class Frame {
+        final PageId pid;
+        final int slot;
+        volatile boolean referenced = true;
+
+        Frame(PageId pid, int slot) {
+            this.pid = pid;
+            this.slot = slot;
+        }
+    }
+
+    private final int numFrames;
+    private final ConcurrentHashMap<PageId, Frame> frames;
+
+    // the ring and its free list; guarded by this
+    private final Frame[] ring;
+    private final int[] freeSlots;
+    private int numFree;
+    private int hand;
+
+    /**
+     * @param numPages the capacity of the cache this policy serves
+     */
+    public ClockPolicy(int numPages) {
+        if (numPages < 1)
+            throw new IllegalArgumentException(String.valueOf(numPages));
+
+        this.numFrames = numPages;
+        this.frames = new ConcurrentHashMap<PageId, Frame>(numPages);
+        this.ring = new Frame[numPages];
+        this.freeSlots = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            freeSlots[i] = numPages - 1 - i;
+        this.numFree = numPages;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+
+    public void pageAccessed(PageId pid) {
+        Frame frame = frames.get(pid);
+        if (frame != null)
+            frame.referenced = true;
+    }
+
+    /**
+     * Returns the frame of the resident page pid, or null.  The PageCache
+     * keeps it with the page, and sets its reference bit on a hit instead
+     * of calling pageAccessed.
+     */
+    Frame frameOf(PageId pid) {
+        return frames.get(pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (frames.containsKey(pid))
+            return;
+        if (numFree == 0)
+            throw new IllegalStateException("clock ring is full");
+
+        Frame frame = new Frame(pid, freeSlots[--numFree]);
+        ring[frame.slot] = frame;
+        frames.put(pid, frame);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Frame frame = frames.remove(pid);
+        if (frame != null)
+            release(frame);
+    }
+
+    public synchronized PageId evict(PageCache cache) throws DbException {
+        // two sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * numFrames; i++) {
+            Frame frame = ring[hand];
+            hand = (hand + 1) % numFrames;
+
+            if (frame == null || !cache.isEvictable(frame.pid))
+                continue;
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+
+            frames.remove(frame.pid);
+            release(frame);
+            return frame.pid;
+        }
+        throw new DbException("Could not evict page: all pages are dirty");
+    }
+
+    // caller must hold the lock on this
+    private void release(Frame frame) {
+        ring[frame.slot] = null;
+        freeSlots[numFree++] = frame.slot;
+    }
+}
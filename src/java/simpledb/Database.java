@@ -54,8 +54,17 @@ public class Database {
         return _instance._bufferpool;
     }
 
+    /** Method used for testing -- create a new instance of the
+        buffer pool with the given eviction policy and return it
+    */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
+        _instance._bufferpool = new BufferPool(pages, policy);
+        return _instance._bufferpool;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+        _instance._catalog.getFileHandles().closeAll();
     	_instance = new Database();
     }
 
@@ -0,0 +1,43 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which page the BufferPool gives up when it needs
+ * room for a new one.  The PageCache reports every hit, admission and
+ * explicit removal to the policy, and asks it for a victim when it is
+ * full.
+ * <p>
+ * Implementations must be thread-safe: pageAccessed is called without any
+ * cache-wide lock held, and may be called for a page that has just been
+ * evicted (it should then be ignored).  The other methods are called with
+ * the PageCache lock held.
+ *
+ * @see PageCache
+ * @see BufferPool#newEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /** Returns a short name for this policy, used in statistics output. */
+    public String getName();
+
+    /** Records a hit on the resident page pid. */
+    public void pageAccessed(PageId pid);
+
+    /** Records that pid has just been read into the cache. */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Records that pid has been discarded from the cache by the caller (not
+     * as a result of evict), so the policy should forget it entirely.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Chooses a victim among the resident pages that cache reports as
+     * evictable, and stops tracking it as resident.
+     *
+     * @param cache the cache asking for a victim
+     * @return the id of the page to evict
+     * @throws DbException if no resident page can be evicted
+     */
+    public PageId evict(PageCache cache) throws DbException;
+}
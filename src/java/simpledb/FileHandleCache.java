@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileHandleCache keeps one long-lived FileChannel open per data file, so
+ * that DbFiles do not open and close the file on every page read or
+ * write.  The cache is owned by the Catalog and shared by every DbFile
+ * backed by the same file.
+ * <p>
+ * Callers should use positional reads and writes ({@link #read} and
+ * {@link #write}) rather than seeking: concurrent readers share the
+ * channel, and positional I/O does not touch its file pointer.
+ * <p>
+ * Interrupting a thread that is doing I/O on a channel closes the
+ * channel, under every other thread using it.  read and write reopen the
+ * channel and retry when it is closed under them; only the interrupted
+ * thread sees the ClosedByInterruptException.
+ * <p>
+ * Files are opened read-write if possible, and read-only otherwise.  If a
+ * file is deleted and recreated under the same name while it is cached,
+ * its handle must be dropped with {@link #close(File)}.
+ *
+ * @see Catalog#getFileHandles
+ */
+public class FileHandleCache {
+
+    private final ConcurrentHashMap<File, FileChannel> channels =
+        new ConcurrentHashMap<File, FileChannel>();
+
+    /**
+     * Returns the open channel for f, opening it if necessary.  A channel
+     * is also reopened if it was closed because a thread was interrupted
+     * while doing I/O on it.
+     *
+     * @throws FileNotFoundException if f does not exist
+     */
+    public FileChannel get(File f) throws IOException {
+        FileChannel ch = channels.get(f);
+        if (ch != null && ch.isOpen())
+            return ch;
+
+        synchronized (this) {
+            ch = channels.get(f);
+            if (ch == null || !ch.isOpen()) {
+                ch = open(f);
+                channels.put(f, ch);
+            }
+            return ch;
+        }
+    }
+
+    /**
+     * Reads from f at position until buf is full or the end of the file is
+     * reached, reopening the file if its channel is closed meanwhile.
+     *
+     * @return the number of bytes read
+     */
+    public int read(File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (true) {
+            FileChannel ch = get(f);
+            try {
+                return readFully(ch, buf, position);
+            } catch (ClosedChannelException e) {
+                retry(f, ch, e);
+                buf.position(start);
+            }
+        }
+    }
+
+    /**
+     * Writes all of buf to f at position, reopening the file if its channel
+     * is closed meanwhile.
+     */
+    public void write(File f, ByteBuffer buf, long position) throws IOException {
+        int start = buf.position();
+        while (true) {
+            FileChannel ch = get(f);
+            try {
+                writeFully(ch, buf, position);
+                return;
+            } catch (ClosedChannelException e) {
+                retry(f, ch, e);
+                buf.position(start);
+            }
+        }
+    }
+
+    /**
+     * Forgets ch, which I/O on f found closed, unless this thread closed
+     * it by being interrupted, in which case e is thrown.
+     */
+    private void retry(File f, FileChannel ch, ClosedChannelException e)
+        throws ClosedChannelException {
+        if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted())
+            throw e;
+        channels.remove(f, ch);
+    }
+
+    /** Closes and forgets the handle for f, if it is open. */
+    public synchronized void close(File f) {
+        FileChannel ch = channels.remove(f);
+        closeQuietly(ch);
+    }
+
+    /** Closes every cached handle. */
+    public synchronized void closeAll() {
+        Iterator<FileChannel> it = channels.values().iterator();
+        while (it.hasNext()) {
+            closeQuietly(it.next());
+            it.remove();
+        }
+    }
+
+    /** Returns the number of open handles. */
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Reads from ch at position until buf is full or the end of the file is
+     * reached, without moving the channel's file pointer.
+     *
+     * @return the number of bytes read
+     */
+    public static int readFully(FileChannel ch, ByteBuffer buf, long position)
+        throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Writes all of buf to ch at position, without moving the channel's
+     * file pointer.
+     */
+    public static void writeFully(FileChannel ch, ByteBuffer buf, long position)
+        throws IOException {
+        long offset = position;
+        while (buf.hasRemaining())
+            offset += ch.write(buf, offset);
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        if (!f.exists())
+            throw new FileNotFoundException(f.getPath());
+        try {
+            return new RandomAccessFile(f, "rw").getChannel();
+        } catch (FileNotFoundException e) {
+            // may exist but be read-only
+            return new RandomAccessFile(f, "r").getChannel();
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        if (ch == null)
+            return;
+        try {
+            ch.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * FreeSpaceMap records, one bit per page, which pages of a HeapFile have
+ * at least one empty slot, so inserts can go straight to a page with room
+ * instead of locking and reading every page of the table.
+ * <p>
+ * The map is a hint.  Inserts still check the page they are given, and
+ * clear its bit if it turns out to be full; a page wrongly marked full
+ * would waste its free slots until the map is rebuilt, so a page is
+ * marked as having room again when an abort gives back the slots a
+ * transaction filled on it (see HeapFile#updateFreeSpace).  The bits are
+ * stored like a HeapPage header: bit (i % 8) of byte (i / 8) is page i.
+ * <p>
+ * The map is kept in a sidecar file next to the data file (see
+ * {@link #sidecarFor}), whose changed bytes are written back by
+ * {@link #sync}.  It is not logged; if the sidecar is missing or does not
+ * match the size of the data file it is rebuilt from the page headers,
+ * and LogFile.recover rebuilds every map after recovery.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private final File file;
+    private byte[] bits;
+    // range of bytes changed since the last sync; dirtyLo > dirtyHi if none
+    private int dirtyLo = Integer.MAX_VALUE;
+    private int dirtyHi = -1;
+
+    private FreeSpaceMap(File file, byte[] bits) {
+        this.file = file;
+        this.bits = bits;
+    }
+
+    /** Returns the sidecar file that holds the map for a data file. */
+    public static File sidecarFor(File dataFile) {
+        return new File(dataFile.getPath() + ".fsm");
+    }
+
+    /**
+     * Loads the map for hf from its sidecar file, or rebuilds it if the
+     * sidecar is missing or the wrong size.
+     */
+    public static FreeSpaceMap open(HeapFile hf) throws IOException {
+        File file = sidecarFor(hf.getFile());
+        int numPages = hf.numPages();
+        if (file.exists() && file.length() == bytesFor(numPages)) {
+            byte[] bits = new byte[bytesFor(numPages)];
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.readFully(bits);
+            } finally {
+                raf.close();
+            }
+            return new FreeSpaceMap(file, bits);
+        }
+        return rebuild(hf);
+    }
+
+    /**
+     * Builds the map for hf by reading the header of each of its pages
+     * from disk, and writes it to the sidecar file.  Pages are not read
+     * through the BufferPool and no locks are taken.
+     */
+    public static FreeSpaceMap rebuild(HeapFile hf) throws IOException {
+        int numPages = hf.numPages();
+        int numSlots = HeapPage.getNumTuples(hf.getTupleDesc());
+        ByteBuffer header = ByteBuffer.allocate(HeapPage.getHeaderSize(hf.getTupleDesc()));
+        FileHandleCache handles = Database.getCatalog().getFileHandles();
+
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecarFor(hf.getFile()), new byte[bytesFor(numPages)]);
+        for (int i = 0; i < numPages; i++) {
+            header.clear();
+            handles.read(hf.getFile(), header, (long) i * BufferPool.PAGE_SIZE);
+            fsm.set(i, HeapPage.hasEmptySlot(header.array(), numSlots));
+        }
+
+        // replace the sidecar, whatever its size was
+        Database.getCatalog().getFileHandles().close(fsm.file);
+        RandomAccessFile raf = new RandomAccessFile(fsm.file, "rw");
+        try {
+            raf.setLength(0);
+        } finally {
+            raf.close();
+        }
+        fsm.dirtyLo = 0;
+        fsm.dirtyHi = fsm.bits.length - 1;
+        fsm.sync();
+        return fsm;
+    }
+
+    private static int bytesFor(int numPages) {
+        return (numPages + 7) / 8;
+    }
+
+    /** Returns true if page pgNo is marked as having an empty slot. */
+    public synchronized boolean hasRoom(int pgNo) {
+        int b = pgNo / 8;
+        return b < bits.length && (bits[b] >> (pgNo % 8) & 1) == 1;
+    }
+
+    /**
+     * Returns the first page at or after from, and before numPages, that is
+     * marked as having an empty slot, or -1 if there is none.  Bytes with
+     * no bits set are skipped whole.
+     */
+    public synchronized int nextFree(int from, int numPages) {
+        int end = Math.min(numPages, bits.length * 8);
+        int i = from;
+        while (i < end) {
+            if (bits[i / 8] == 0) {
+                i = (i / 8 + 1) * 8;
+                continue;
+            }
+            if ((bits[i / 8] >> (i % 8) & 1) == 1)
+                return i;
+            i++;
+        }
+        return -1;
+    }
+
+    /** Marks page pgNo as having an empty slot or not. */
+    public synchronized void set(int pgNo, boolean hasRoom) {
+        int b = pgNo / 8;
+        if (b >= bits.length) {
+            if (!hasRoom)
+                return;
+            byte[] grown = new byte[Math.max(b + 1, bits.length * 2)];
+            System.arraycopy(bits, 0, grown, 0, bits.length);
+            bits = grown;
+        }
+
+        byte old = bits[b];
+        if (hasRoom)
+            bits[b] |= (byte) (1 << (pgNo % 8));
+        else
+            bits[b] &= (byte) ~(1 << (pgNo % 8));
+        if (bits[b] != old) {
+            dirtyLo = Math.min(dirtyLo, b);
+            dirtyHi = Math.max(dirtyHi, b);
+        }
+    }
+
+    /**
+     * Writes the bytes changed since the last sync to the sidecar file.
+     * Does nothing if no page has changed state.
+     */
+    public synchronized void sync() throws IOException {
+        if (dirtyLo > dirtyHi)
+            return;
+        if (!file.exists())
+            file.createNewFile();
+        Database.getCatalog().getFileHandles().write(file,
+                ByteBuffer.wrap(bits, dirtyLo, dirtyHi - dirtyLo + 1), dirtyLo);
+        dirtyLo = Integer.MAX_VALUE;
+        dirtyHi = -1;
+    }
+}
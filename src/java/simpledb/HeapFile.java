@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -17,6 +19,15 @@ public class HeapFile implements DbFile {
 
     private File f;
     private TupleDesc td;
+    // loaded on first use; see freeSpace()
+    private transient FreeSpaceMap fsm;
+
+    // per-thread buffer that pages are serialized into by writePage
+    private static final ThreadLocal<ByteBuffer> writeBuffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BufferPool.PAGE_SIZE);
+        }
+    };
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -61,33 +72,72 @@ public class HeapFile implements DbFile {
         return td;
     }
 
-    public Page readPage(PageId pid) {
-        RandomAccessFile fp;
-
-        try {
-            fp = new RandomAccessFile(f, "r");
-        } catch(java.io.FileNotFoundException e) {
-            throw new IllegalArgumentException();
-        }
+    /**
+     * Returns the channel for this file from the Catalog's handle cache.
+     */
+    protected FileChannel channel() throws IOException {
+        return Database.getCatalog().getFileHandles().get(f);
+    }
 
+    public Page readPage(PageId pid) {
         try {
             byte[] page = new byte[BufferPool.PAGE_SIZE];
-            fp.seek(BufferPool.PAGE_SIZE * pid.pageNumber());
-            fp.read(page, 0, BufferPool.PAGE_SIZE);
-            fp.close();
+            long offset = (long) BufferPool.PAGE_SIZE * pid.pageNumber();
+            Database.getCatalog().getFileHandles().read(f, ByteBuffer.wrap(page), offset);
             return new HeapPage(
                 new HeapPageId(pid.getTableId(), pid.pageNumber()), page);
         } catch(IOException e) {
-            throw new IllegalArgumentException();
+            throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * Returns the free-space map of this file, loading it if necessary.
+     */
+    public synchronized FreeSpaceMap freeSpace() throws IOException {
+        if (fsm == null)
+            fsm = FreeSpaceMap.open(this);
+        return fsm;
+    }
+
+    /**
+     * Rebuilds the free-space map of this file from its pages on disk.
+     */
+    public synchronized void rebuildFreeSpaceMap() throws IOException {
+        fsm = FreeSpaceMap.rebuild(this);
+    }
+
+    /**
+     * Writes the page to disk, and records in the free-space map whether it
+     * has room.
+     */
     public void writePage(Page page) throws IOException {
-        int offset = page.getId().pageNumber() * BufferPool.PAGE_SIZE;
-        RandomAccessFile file = new RandomAccessFile(f, "rw");
-        file.seek(offset);
-        file.write(page.getPageData());
-        file.close();
+        long offset = (long) page.getId().pageNumber() * BufferPool.PAGE_SIZE;
+        ByteBuffer buf;
+        if (page instanceof HeapPage) {
+            buf = writeBuffer.get();
+            buf.clear();
+            ((HeapPage) page).writePageData(buf);
+            buf.flip();
+        } else {
+            buf = ByteBuffer.wrap(page.getPageData());
+        }
+        Database.getCatalog().getFileHandles().write(f, buf, offset);
+
+        if (page instanceof HeapPage)
+            updateFreeSpace(page.getId().pageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    /**
+     * Records in the free-space map whether a page has room.  Pages that
+     * are written are recorded by writePage; this is for pages that change
+     * without being written, as when an abort gives back the slots a
+     * transaction filled.
+     */
+    public void updateFreeSpace(int pgNo, boolean hasRoom) throws IOException {
+        FreeSpaceMap map = freeSpace();
+        map.set(pgNo, hasRoom);
+        map.sync();
     }
 
     /**
@@ -97,33 +147,74 @@ public class HeapFile implements DbFile {
         return (int) Math.ceil(f.length() / BufferPool.PAGE_SIZE);
     }
 
+    /**
+     * Inserts t into the first page the free-space map shows has room,
+     * appending a new page if there is none.  Pages that turn out to be
+     * full are unmarked and released.
+     * <p>
+     * If the BufferPool has record locking enabled for this file, pages
+     * are fetched with an intention lock instead, and t goes into the
+     * first empty slot whose record lock is free: a slot emptied by a
+     * transaction that has not completed stays locked by it, so that the
+     * deleted tuple can be put back if it aborts.
+     */
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException,TransactionAbortedException {
         ArrayList<Page> pageList = new ArrayList<Page>();
-
-        for(int i = 0; i < numPages(); i++) {
-             HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
-                     new HeapPageId(getId(), i), Permissions.READ_WRITE);
-             if (page.getNumEmptySlots() > 0) {
-                 page.insertTuple(t);
-                 pageList.add(page);
-                 return pageList;
-             }
-             else
-                 Database.getBufferPool().releasePage(tid, page.getId());
+        FreeSpaceMap map;
+        try {
+            map = freeSpace();
+        } catch (IOException e) {
+            throw new DbException("could not open free-space map: " + e);
         }
-        
-        //long initPages = numPages();
-        HeapPageId pid = new HeapPageId(getId(), numPages());
+
+        BufferPool bp = Database.getBufferPool();
+        boolean recordLocks = bp.isRecordLocking(getId());
         try {
+            int n = numPages();
+            for (int i = map.nextFree(0, n); i >= 0; i = map.nextFree(i + 1, n)) {
+                if (recordLocks) {
+                    HeapPage page = (HeapPage) bp.getPageForRecords(tid,
+                            new HeapPageId(getId(), i), Permissions.READ_WRITE);
+                    boolean inserted = insertRecord(tid, page, t);
+                    if (page.getNumEmptySlots() == 0)
+                        map.set(i, false);
+                    if (inserted) {
+                        pageList.add(page);
+                        return pageList;
+                    }
+                    continue;
+                }
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(getId(), i), Permissions.READ_WRITE);
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertTuple(t);
+                    if (page.getNumEmptySlots() == 0)
+                        map.set(i, false);
+                    pageList.add(page);
+                    return pageList;
+                }
+                else {
+                    map.set(i, false);
+                    Database.getBufferPool().releasePage(tid, page.getId());
+                }
+            }
+
+            //long initPages = numPages();
+            HeapPageId pid = new HeapPageId(getId(), numPages());
             HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
-            FileOutputStream file = new FileOutputStream(f, true);
-            file.write(page.getPageData());
-            file.close();
+            writePage(page);
 
-            page = (HeapPage) Database.getBufferPool().getPage(
-                    tid, pid, Permissions.READ_WRITE);
-            page.insertTuple(t);
+            if (recordLocks) {
+                page = (HeapPage) bp.getPageForRecords(tid, pid, Permissions.READ_WRITE);
+                if (!insertRecord(tid, page, t))
+                    throw new DbException("no free slot on new page " + pid.pageNumber());
+            } else {
+                page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+                page.insertTuple(t);
+            }
+            if (page.getNumEmptySlots() == 0)
+                map.set(pid.pageNumber(), false);
             pageList.add(page);
         }
         catch(IOException e) {
@@ -134,13 +225,61 @@ public class HeapFile implements DbFile {
         return pageList;
     }
 
+    /**
+     * Inserts t into an empty slot of page that tid can lock without
+     * waiting, holding the page's latch.  Returns false if there is no
+     * such slot.
+     */
+    private boolean insertRecord(TransactionId tid, HeapPage page, Tuple t)
+            throws DbException {
+        BufferPool bp = Database.getBufferPool();
+        page.latch().writeLock().lock();
+        try {
+            for (int i = page.nextSlot(0, false); i >= 0; i = page.nextSlot(i + 1, false)) {
+                if (bp.tryLockRecord(tid, new RecordId(page.getId(), i))) {
+                    page.saveSlot(tid, i);
+                    page.insertTuple(t, i);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            page.latch().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes t from its page.  If the BufferPool has record locking
+     * enabled for this file, only t's record is locked, and the page is
+     * changed under its latch.
+     */
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
 
-        PageId pid = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(
-                tid, pid, Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        RecordId rid = t.getRecordId();
+        PageId pid = rid.getPageId();
+        BufferPool bp = Database.getBufferPool();
+        HeapPage page;
+        if (bp.isRecordLocking(getId())) {
+            bp.lockRecord(tid, rid, Permissions.READ_WRITE);
+            page = (HeapPage) bp.getPageForRecords(tid, pid, Permissions.READ_WRITE);
+            page.latch().writeLock().lock();
+            try {
+                page.saveSlot(tid, rid.tupleno());
+                page.deleteTuple(t);
+            } finally {
+                page.latch().writeLock().unlock();
+            }
+        } else {
+            page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+        }
+        try {
+            freeSpace().set(pid.pageNumber(), true);
+        } catch (IOException e) {
+            // only a hint: the page's room is found again when the map is rebuilt
+            e.printStackTrace();
+        }
 
         return page;
     }
@@ -1,14 +1,31 @@
-package simpledb; 
-import java.io.IOException;
+package simpledb;
 import java.util.*;
 
+/**
+ * HeapIterator scans the tuples of a HeapFile in page order.  It is a
+ * cursor over (page, tuple) with four states: CLOSED before open() and
+ * after close(); BEFORE_PAGE when the next page has not been fetched yet;
+ * IN_PAGE while tuples of the current page remain; and DONE after the
+ * last page.  Each page is fetched exactly once per pass, and only when
+ * the tuples before it have been consumed.
+ * <p>
+ * Pages are fetched READ_ONLY, and their locks are kept until the
+ * transaction completes (strict two-phase locking).  Large scans lock the
+ * whole table instead of each page, and read through a BufferRing and
+ * drive a ReadAhead, if the BufferPool provides them.
+ */
 public class HeapIterator implements DbFileIterator {
+    private enum State { CLOSED, BEFORE_PAGE, IN_PAGE, DONE }
+
+    private State state = State.CLOSED;
     private int pageNo;
-    private Iterator<Tuple>pageIt;
-    private boolean opened;
+    private Iterator<Tuple> pageIt;
     private TransactionId tid;
     private int numPages;
     private int id;
+    private int pagesTouched;
+    private BufferRing ring;
+    private ReadAhead readAhead;
 
     public HeapIterator(TransactionId tid, int nPages, int id) {
         this.tid = tid;
@@ -18,79 +35,63 @@ public class HeapIterator implements DbFileIterator {
 
     public void open()
             throws DbException, TransactionAbortedException {
-        pageNo = 0;
-
-        int i = findNextIteratorIndex(0);
-
-        if (i == -1){
-            pageIt = null;
-
-        }
-        else{
-            pageIt = getIteratorAtIndex(i);       //<-- problem here
-
-        }
-        opened = true;
+        pageNo = -1;
+        pageIt = null;
+        pagesTouched = 0;
+        Database.getBufferPool().lockTableForScan(tid, id, numPages);
+        ring = Database.getBufferPool().newScanRing(numPages);
+        readAhead = Database.getBufferPool().newReadAhead(id, numPages);
+        state = State.BEFORE_PAGE;
     }
 
     public boolean hasNext()
             throws DbException, TransactionAbortedException {
-        boolean result = false;
-
-        if (!opened)
-            ;
-        else if (pageIt == null)
-            ;
-        else if (pageIt.hasNext())
-            result = true;
-        else if (pageNo >= numPages)
-            ;
-
-        int i = findNextIteratorIndex(pageNo + 1);
-        if (i == -1)
-            ;
-        else
-            result = true;
-
-        return result;
-    }
-
-    private Iterator<Tuple> getIteratorAtIndex(int i)
-            throws DbException, TransactionAbortedException, NoSuchElementException {
-
-        HeapPage currentPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(this.id, i), Permissions.READ_WRITE );
-        Database.getBufferPool().releasePage(tid, currentPage.getId());
-        return currentPage.iterator();
-    }
-
-    private int findNextIteratorIndex(int i)
-            throws DbException, TransactionAbortedException, NoSuchElementException {
-        for(; i < numPages; i++) {
-            if(getIteratorAtIndex(i).hasNext())
-                return i;
+        while (true) {
+            switch (state) {
+            case CLOSED:
+            case DONE:
+                return false;
+            case IN_PAGE:
+                if (pageIt.hasNext())
+                    return true;
+                state = State.BEFORE_PAGE;
+                break;
+            case BEFORE_PAGE:
+                if (pageNo + 1 >= numPages) {
+                    pageIt = null;
+                    state = State.DONE;
+                    return false;
+                }
+                pageNo++;
+                pageIt = fetchPage(pageNo).iterator();
+                state = State.IN_PAGE;
+                break;
+            }
         }
-
-        return -1;
     }
 
     public Tuple next()
             throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException("No Tuples Left");
+        return pageIt.next();
+    }
 
-        if (!opened || pageIt == null || pageNo >= numPages)
-            throw new NoSuchElementException();
-
-        if (pageIt.hasNext())
-            return pageIt.next();
+    private HeapPage fetchPage(int i)
+            throws DbException, TransactionAbortedException {
+        if (readAhead != null)
+            readAhead.advance(i);
+        pagesTouched++;
+        return (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(this.id, i), Permissions.READ_ONLY, ring);
+    }
 
-        pageNo++;
-        int i = findNextIteratorIndex(pageNo);
-        if (i == -1)
-            throw new NoSuchElementException("No Tuples Left");
-        else {
-            pageNo = i;
-            pageIt = getIteratorAtIndex(i);
-            return pageIt.next();
-        }
+    /**
+     * Returns the number of pages fetched since the iterator was last
+     * opened or rewound.
+     */
+    public int getPagesTouched() {
+        return pagesTouched;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -99,6 +100,12 @@ public class HeapIterator implements DbFileIterator {
     }
 
     public void close() {
-        opened = false;
+        state = State.CLOSED;
+        pageIt = null;
+        ring = null;
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
     }
 }
@@ -2,6 +2,9 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,13 +18,36 @@ public class HeapPage implements Page {
 
     HeapPageId pid;
     TupleDesc td;
-    byte header[];
+    // the header: bit (i % 64) of used[i / 64] is set if slot i is in use
+    long used[];
+    int headerSize;
+    // number of slots in use
+    int numUsed;
     Tuple tuples[];
     int numSlots;
     boolean dirt;
     TransactionId tranId;
 
-    byte[] oldData;
+    // the page as of the last before image; never written through
+    ByteBuffer raw;
+    // true once raw has been made a private copy (see beforeModify)
+    boolean rawOwned;
+    // true if the page has changed since raw was taken
+    boolean modified;
+    // offset of each field within a tuple
+    int fieldOffsets[];
+
+    // held shared while the page is serialized or imaged, and exclusive
+    // while it is changed or written (see latch())
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+    // for each transaction that changed slots under record locks, the
+    // slots' contents before its first change (null for an empty slot);
+    // guarded by the latch
+    private HashMap<TransactionId, HashMap<Integer, Tuple>> slotUndo;
+    // the before image shared by snapshot readers, or null if not made yet
+    private volatile HeapPage committedImage;
+    // the LSN of the last log record of this page (see getLSN())
+    private volatile long lsn;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -35,39 +61,81 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page keeps a reference to data, which must not be modified
+     * afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage directly over a buffer, such as a slice of a
+     * memory-mapped file, without first copying it into a byte array.
+     * The page starts at the buffer's position; the buffer's position is
+     * not changed.
+     * <p>
+     * Only the header is read here.  Tuples are decoded from the buffer
+     * when they are first returned by {@link #iterator}, and each of their
+     * fields when it is first requested (see {@link LazyTuple}).  A direct
+     * buffer is copied the first time the page is modified, so it may be a
+     * view of the page's own location on disk; a heap buffer must not be
+     * modified afterwards.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     * @see MappedHeapFile
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.raw = data.slice();
+        // a heap buffer belongs to the page, like the byte[] constructor's array
+        this.rawOwned = raw.hasArray();
+        if (raw.remaining() < BufferPool.PAGE_SIZE)
+            throw new IOException("short page: " + raw.remaining() + " bytes");
+
+        // read the header slots of this page into 64-bit words
+        headerSize = getHeaderSize();
+        used = new long[(numSlots + 63) / 64];
+        ByteBuffer hdr = raw.duplicate();
+        hdr.order(ByteOrder.LITTLE_ENDIAN);
+        for (int w=0; w<used.length; w++) {
+            int start = w * 8;
+            if (start + 8 <= headerSize) {
+                used[w] = hdr.getLong(start);
+            } else {
+                for (int b=start; b<headerSize; b++)
+                    used[w] |= (hdr.get(b) & 0xFFL) << (8 * (b - start));
+            }
         }
-        dis.close();
-
-        setBeforeImage();
+        // ignore any bits set past the last slot
+        if (numSlots % 64 != 0)
+            used[used.length - 1] &= (1L << numSlots) - 1;
+        for (int w=0; w<used.length; w++)
+            numUsed += Long.bitCount(used[w]);
+
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
-        int tupleSizeInBytes = this.td.getSize();
+        return getNumTuples(this.td);
+    }
+
+    /** Retrieve the number of tuple slots on a page of a table with schema td.
+        @return the number of tuple slots on each page
+    */
+    static int getNumTuples(TupleDesc td) {
+        int tupleSizeInBytes = td.getSize();
         double tupsPerPage = Math.floor((BufferPool.PAGE_SIZE * 8) / (tupleSizeInBytes*8 + 1));
         return (int) tupsPerPage;
     }
@@ -77,26 +145,86 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        double headerBytes = Math.ceil(this.getNumTuples() / 8f);
+        return getHeaderSize(this.td);
+    }
+
+    /**
+     * Computes the number of bytes in the header of a page of a table with schema td.
+     */
+    static int getHeaderSize(TupleDesc td) {
+        double headerBytes = Math.ceil(getNumTuples(td) / 8f);
         return (int) headerBytes;
-                 
+    }
+
+    /**
+     * Returns true if the page header has a clear bit for any of the first
+     * numSlots slots.  Used to check a page for room without decoding it.
+     */
+    static boolean hasEmptySlot(byte[] header, int numSlots) {
+        for (int i = 0; i < numSlots / 8; i++) {
+            if (header[i] != (byte) 0xFF)
+                return true;
+        }
+        int rest = numSlots % 8;
+        return rest != 0 && (header[numSlots / 8] & ((1 << rest) - 1)) != (1 << rest) - 1;
     }
     
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery and snapshot reads.  The view does not change
+        when the page is written back. */
     public HeapPage getBeforeImage(){
+        latch.readLock().lock();
         try {
-            return new HeapPage(pid,oldData);
+            if (!rawOwned) {
+                // raw may be a view of the page on disk
+                byte[] copy = new byte[BufferPool.PAGE_SIZE];
+                raw.duplicate().get(copy);
+                return new HeapPage(pid, copy);
+            }
+            return new HeapPage(pid,raw);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
             System.exit(1);
+        } finally {
+            latch.readLock().unlock();
         }
         return null;
     }
     
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        latch.writeLock().lock();
+        try {
+            // decoded tuples stay valid: they hold the same values as the new bytes
+            raw = ByteBuffer.wrap(getPageData());
+            rawOwned = true;
+            modified = false;
+            committedImage = null;
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the before image of this page for snapshot readers, which
+     * must not change it.  Unlike getBeforeImage, this returns the same
+     * image until the before image is next set, so readers share it and
+     * the tuples it has decoded.
+     */
+    HeapPage getCommittedImage() {
+        // the shared latch keeps setBeforeImage from running while an
+        // image of the old bytes is cached
+        latch.readLock().lock();
+        try {
+            HeapPage image = committedImage;
+            if (image == null) {
+                image = getBeforeImage();
+                committedImage = image;
+            }
+            return image;
+        } finally {
+            latch.readLock().unlock();
+        }
     }
 
     /**
@@ -107,39 +235,41 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Called before every change to the page.  The first time after its
+     * before image was taken, if raw is a view of storage that may be
+     * overwritten, such as a mapping of the page on disk, it is copied, so
+     * that the before image survives the page being written back.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private void beforeModify() {
+        modified = true;
+        if (rawOwned)
+            return;
+        byte[] copy = new byte[BufferPool.PAGE_SIZE];
+        raw.duplicate().get(copy);
+        raw = ByteBuffer.wrap(copy);
+        rawOwned = true;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Returns the tuple in slot i, decoding it if necessary, or null if
+     * the slot is empty.
+     */
+    private Tuple getTuple(int i) {
+        if (!isSlotUsed(i))
+            return null;
+        Tuple t = tuples[i];
+        if (t == null) {
+            t = new LazyTuple(td, raw, slotOffset(i), fieldOffsets);
+            t.setRecordId(new RecordId(pid, i));
+            tuples[i] = t;
         }
-
         return t;
     }
 
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -149,67 +279,105 @@ public class HeapPage implements Page {
      * have it produce an identical HeapPage object.
      *
      * @see #HeapPage
+     * @see #writePageData
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        writePageData(ByteBuffer.wrap(data));
+        return data;
+    }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+    /**
+     * Writes the contents of this page, in the format returned by
+     * getPageData, into buf at its current position, and advances the
+     * position by BufferPool.PAGE_SIZE.  Lets callers serialize into a
+     * reused buffer rather than allocating a byte array per page.
+     * <p>
+     * A page that has not been modified since its before image was taken
+     * is copied from its original bytes in one piece.  Otherwise, empty
+     * slots are zero-filled and tuples read from this page are copied from
+     * the original bytes, a run of adjacent slots at a time; only inserted
+     * or changed tuples are encoded field by field.
+     *
+     * @throws java.nio.BufferOverflowException if buf has fewer than
+     *         BufferPool.PAGE_SIZE bytes remaining
+     */
+    public void writePageData(ByteBuffer buf) {
+        latch.readLock().lock();
+        try {
+            writeLatched(buf);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+    private void writeLatched(ByteBuffer buf) {
+        if (!modified) {
+            copyRaw(buf, 0, BufferPool.PAGE_SIZE);
+            return;
+        }
 
-                }
-                continue;
-            }
+        int start = buf.position();
+        int size = td.getSize();
+        writeHeader(buf);
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        int i = 0;
+        while (i < numSlots) {
+            int j = i + 1;
+            if (!isSlotUsed(i)) {
+                j = nextSlot(i, true);
+                if (j < 0)
+                    j = numSlots;
+                zeroFill(buf, (j - i) * size);
+            } else if (isUnchanged(i)) {
+                while (j < numSlots && isSlotUsed(j) && isUnchanged(j))
+                    j++;
+                copyRaw(buf, slotOffset(i), (j - i) * size);
+            } else {
+                for (int k=0; k<td.numFields(); k++)
+                    tuples[i].getField(k).serialize(buf);
             }
+            i = j;
         }
 
         // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        zeroFill(buf, start + BufferPool.PAGE_SIZE - buf.position());
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Returns true if the used slot i still holds the bytes it was read
+     * with: it was never decoded, or was decoded as a LazyTuple that has
+     * not been detached from the page.
+     */
+    private boolean isUnchanged(int i) {
+        Tuple t = tuples[i];
+        return t == null || (t instanceof LazyTuple && !((LazyTuple) t).isMaterialized());
+    }
 
-        return baos.toByteArray();
+    /** Writes the header words as headerSize little-endian bytes. */
+    private void writeHeader(ByteBuffer buf) {
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        int w = 0;
+        for (; (w + 1) * 8 <= headerSize; w++)
+            buf.putLong(used[w]);
+        for (int b=w*8; b<headerSize; b++)
+            buf.put((byte) (used[w] >>> (8 * (b - w * 8))));
+        buf.order(order);
+    }
+
+    private void copyRaw(ByteBuffer buf, int offset, int len) {
+        ByteBuffer src = raw.duplicate();
+        src.position(offset);
+        src.limit(offset + len);
+        buf.put(src);
+    }
+
+    private static final byte[] ZEROES = new byte[BufferPool.PAGE_SIZE];
+
+    private static void zeroFill(ByteBuffer buf, int len) {
+        buf.put(ZEROES, 0, len);
     }
 
     /**
@@ -235,16 +403,27 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         HeapPageId ppid = (HeapPageId) t.getRecordId().getPageId();
-        if(ppid != this.pid)
+        if(!this.pid.equals(ppid))
             throw new DbException("Tuple not found in this page");
 
         int i = t.getRecordId().tupleno();
-        if(this.isSlotUsed(i)) {
-            this.markSlotUsed(i, false);
-            this.tuples[i] = null;
+        latch.writeLock().lock();
+        try {
+            if(this.isSlotUsed(i)) {
+                // the tuple may outlive the bytes it would be decoded from
+                if (t instanceof LazyTuple)
+                    ((LazyTuple) t).materialize();
+                if (tuples[i] instanceof LazyTuple)
+                    ((LazyTuple) tuples[i]).materialize();
+                beforeModify();
+                this.markSlotUsed(i, false);
+                this.tuples[i] = null;
+            }
+            else
+                throw new DbException("Tuple slot in this page not used: " + i);
+        } finally {
+            latch.writeLock().unlock();
         }
-        else
-            throw new DbException("Tuple slot in this page not used: " + i);
     }
 
     /**
@@ -255,21 +434,148 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
-        if(this.getNumEmptySlots() == 0)
-            throw new DbException("page full");
-        else if(!(t.getTupleDesc().equals(this.td)))
-            throw new DbException("td doesn't match");
-
-        for(int i=0; i<this.getNumTuples(); i++){
-            if(!this.isSlotUsed(i)){
-                this.markSlotUsed(i,true);
-                this.tuples[i] = t;
-                t.setRecordId(new RecordId(this.pid,i));
-                break;
-            }
+        latch.writeLock().lock();
+        try {
+            if(this.getNumEmptySlots() == 0)
+                throw new DbException("page full");
+            insertTuple(t, nextSlot(0, false));
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the specified tuple to the page in empty slot i.
+     * @throws DbException if slot i is in use or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int i) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if(this.isSlotUsed(i))
+                throw new DbException("Tuple slot in this page already used: " + i);
+            else if(!(t.getTupleDesc().equals(this.td)))
+                throw new DbException("td doesn't match");
+
+            // the tuple may come from another page's bytes
+            if (t instanceof LazyTuple)
+                ((LazyTuple) t).materialize();
+            beforeModify();
+            this.markSlotUsed(i,true);
+            this.tuples[i] = t;
+            t.setRecordId(new RecordId(this.pid,i));
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the page's latch.  The page takes it itself: exclusive while
+     * a tuple is inserted or deleted or the before image is set, and
+     * shared while the page is serialized or imaged, so these are
+     * consistent even when threads share the page.  The BufferPool holds
+     * it exclusive while it writes the page.  Callers take the exclusive
+     * latch to make several steps one change, as transactions holding
+     * only record locks on the page do when they pick a slot and fill it,
+     * and must hold it to call the slot undo methods.  Readers of tuples
+     * need not take it: a transaction holding a shared lock on the page
+     * keeps others from changing it.
+     */
+    public ReentrantReadWriteLock latch() {
+        return latch;
+    }
+
+    /**
+     * Saves the contents of slot i before tid changes it under a record
+     * lock, unless tid has changed it already, so that the change can be
+     * undone without disturbing other transactions' changes to the page.
+     * Called with the latch held.
+     */
+    void saveSlot(TransactionId tid, int i) {
+        if (slotUndo == null)
+            slotUndo = new HashMap<TransactionId, HashMap<Integer, Tuple>>();
+        HashMap<Integer, Tuple> saved = slotUndo.get(tid);
+        if (saved == null) {
+            saved = new HashMap<Integer, Tuple>();
+            slotUndo.put(tid, saved);
+        }
+        if (saved.containsKey(i))
+            return;
+        Tuple t = getTuple(i);
+        // the bytes it would be decoded from change with the before image
+        if (t instanceof LazyTuple)
+            ((LazyTuple) t).materialize();
+        saved.put(i, t);
+    }
+
+    /**
+     * Returns true if this page has changed since its before image was
+     * set, even if it has been written since.
+     */
+    boolean isModified() {
+        latch.readLock().lock();
+        try {
+            return modified;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /** Returns true if tid has changed slots of this page under record locks. */
+    boolean hasSlotChanges(TransactionId tid) {
+        return slotUndo != null && slotUndo.containsKey(tid);
+    }
+
+    /**
+     * Returns a transaction whose record-locked changes to this page are
+     * not yet committed or undone, or null if there is none.
+     */
+    TransactionId slotWriter() {
+        if (slotUndo == null || slotUndo.isEmpty())
+            return null;
+        return slotUndo.keySet().iterator().next();
+    }
+
+    /**
+     * Returns the transactions whose record-locked changes to this page
+     * are not yet committed or undone.  Called with the latch held.
+     */
+    Set<TransactionId> slotWriters() {
+        if (slotUndo == null)
+            return Collections.<TransactionId>emptySet();
+        return slotUndo.keySet();
+    }
+
+    /**
+     * Returns the slots tid has changed under record locks, or null if it
+     * has changed none.  Called with the latch held.
+     */
+    Set<Integer> changedSlots(TransactionId tid) {
+        HashMap<Integer, Tuple> saved = slotUndo == null ? null : slotUndo.get(tid);
+        return saved == null ? null : saved.keySet();
+    }
+
+    /** Restores the slots tid changed under record locks.  Called with the latch held. */
+    void undoSlots(TransactionId tid) {
+        HashMap<Integer, Tuple> saved = slotUndo == null ? null : slotUndo.remove(tid);
+        if (saved == null)
+            return;
+        beforeModify();
+        for (Map.Entry<Integer, Tuple> e : saved.entrySet()) {
+            int i = e.getKey();
+            Tuple t = e.getValue();
+            markSlotUsed(i, t != null);
+            tuples[i] = t;
+            if (t != null)
+                t.setRecordId(new RecordId(this.pid, i));
         }
     }
 
+    /** Forgets the saved slots of tid, which has committed.  Called with the latch held. */
+    void commitSlots(TransactionId tid) {
+        if (slotUndo != null)
+            slotUndo.remove(tid);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -293,69 +599,113 @@ public class HeapPage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
-        int counter = 0;
-        for (int i=0; i<numSlots; i++) {
-            if(!isSlotUsed(i))
-                counter++;
-        }
-        return counter;
+        return numSlots - numUsed;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        int posByte = i / 8;
-	    if(posByte > header.length -1)
-		    System.out.println("byte: " + posByte + " with header size: " + header.length);
-	
-	    int posBit  = i % 8;
-        byte theByte = header[posByte];
-        int val = theByte >> posBit & 0x0001;
+        if (i < 0 || i >= numSlots)
+            throw new IndexOutOfBoundsException("slot " + i + " of " + numSlots);
+        return (used[i >>> 6] & (1L << i)) != 0;
+    }
 
-        return val == 0x0001;
+    /**
+     * Returns the first slot at or after from that is in use (if inUse) or
+     * empty (if not), or -1 if there is none.  Whole words of the header
+     * that have no such slot are skipped.
+     */
+    int nextSlot(int from, boolean inUse) {
+        if (from >= numSlots)
+            return -1;
+        int w = from >>> 6;
+        long word = (inUse ? used[w] : ~used[w]) & (-1L << from);
+        while (word == 0) {
+            if (++w == used.length)
+                return -1;
+            word = inUse ? used[w] : ~used[w];
+        }
+        int i = (w << 6) + Long.numberOfTrailingZeros(word);
+        return i < numSlots ? i : -1;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        int posByte = i / 8;
-        if(posByte > header.length -1)
-            System.out.println("byte: " + posByte + " with header size: " + header.length);
-
-        int posBit  = i % 8;
-        byte theByte = header[posByte];
-
-        byte delmask = (byte) (((byte) 0xFF) - (0x01 << posBit));
-        byte addmask = (byte) (((byte) 0x00) + (0x01 << posBit));
-
-        if(value){
-            theByte = (byte) (theByte | addmask);
+        long bit = 1L << i;
+        long word = used[i >>> 6];
+        if (value && (word & bit) == 0) {
+            used[i >>> 6] = word | bit;
+            numUsed++;
+        } else if (!value && (word & bit) != 0) {
+            used[i >>> 6] = word & ~bit;
+            numUsed--;
         }
-        else
-            theByte = (byte) (theByte & delmask);
-
-        header[posByte] = theByte;
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator returns the tuples in the slots in use when it was
+     * created, skipping runs of empty slots a header word at a time.
+     * Tuples deleted from the page meanwhile are skipped; tuples inserted
+     * are not returned.
      */
     public Iterator<Tuple> iterator() {
-        ArrayList<Tuple> tupleList = new ArrayList<Tuple>(numSlots);
-        for (int i=0; i < tuples.length; i++) {
-            if (isSlotUsed(i))
-                tupleList.add(this.tuples[i]);
-        }
+        final long[] snapshot = used.clone();
+        return new Iterator<Tuple>() {
+            private int w = 0;
+            private long word = snapshot.length > 0 ? snapshot[0] : 0;
+            private Tuple next = null;
+
+            private Tuple advance() {
+                while (true) {
+                    while (word == 0) {
+                        if (++w >= snapshot.length)
+                            return null;
+                        word = snapshot[w];
+                    }
+                    int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    Tuple t = getTuple(i);
+                    if (t != null)
+                        return t;
+                }
+            }
+
+            public boolean hasNext() {
+                if (next == null)
+                    next = advance();
+                return next != null;
+            }
 
-        return Collections.unmodifiableList(tupleList).iterator();
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = advance();
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
 }
-
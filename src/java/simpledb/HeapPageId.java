@@ -32,17 +32,13 @@ public class HeapPageId implements PageId {
     }
 
     /**
-     * @return a hash code for this page, represented by the concatenation of
-     *   the table number and the page number (needed if a PageId is used as a
-     *   key in a hash table in the BufferPool, for example.)
+     * @return a hash code for this page, combining the table number and the
+     *   page number (needed if a PageId is used as a key in a hash table in
+     *   the BufferPool, for example.)
      * @see BufferPool
      */
     public int hashCode() {
-        String tableId = Integer.toString(getTableId());
-        String pgNo = Integer.toString(pageNumber());
-        String hashCode = tableId + pgNo;
-
-        return Long.valueOf(hashCode).hashCode();
+        return 31 * tableId + pgNo;
     }
 
     /**
@@ -78,4 +74,8 @@ public class HeapPageId implements PageId {
         return data;
     }
 
+    public String toString() {
+        return "page " + pgNo + " of table " + tableId;
+    }
+
 }
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+/**
+ * LazyTuple is a Tuple stored in a HeapPage that decodes its fields from
+ * the tuple's raw bytes the first time each one is requested, instead of
+ * when the page is read.  A scan whose filter looks at one column of a
+ * wide tuple therefore only builds that column's Field.
+ * <p>
+ * The tuple's bytes are copied out of the page when it is created, since
+ * the page's buffer may be a mapping of the file that changes when the
+ * page is written back.  Decoded fields are cached.  HeapPage materializes
+ * a tuple (decodes all of its fields) before removing it from the page.
+ * Until then, the tuple's bytes on the page are the bytes it was read
+ * from, so the page can write them back without encoding the tuple.
+ *
+ * @see HeapPage#iterator
+ */
+class LazyTuple extends Tuple {
+
+    private static final long serialVersionUID = 1L;
+
+    // a copy of the tuple's bytes, and the offset of each of its fields
+    private transient ByteBuffer raw;
+    private transient int[] fieldOffsets;
+
+    /**
+     * @param td the schema of the tuple
+     * @param page the page bytes; only read with absolute offsets
+     * @param offset the offset of the tuple in page
+     * @param fieldOffsets the offset of each field within the tuple
+     */
+    LazyTuple(TupleDesc td, ByteBuffer page, int offset, int[] fieldOffsets) {
+        super(td);
+        byte[] bytes = new byte[td.getSize()];
+        ByteBuffer src = page.duplicate();
+        src.position(offset);
+        src.get(bytes);
+        this.raw = ByteBuffer.wrap(bytes);
+        this.fieldOffsets = fieldOffsets;
+    }
+
+    public Field getField(int i) {
+        Field f = super.getField(i);
+        ByteBuffer r = raw;
+        if (f == null && r != null) {
+            f = decode(r, i);
+            super.setField(i, f);
+        }
+        return f;
+    }
+
+    /**
+     * Changing a field detaches the tuple from the bytes it was read from.
+     */
+    public void setField(int i, Field f) {
+        materialize();
+        super.setField(i, f);
+    }
+
+    /**
+     * Returns true if the tuple no longer reads from the bytes it was
+     * created from, so its fields may differ from them.
+     */
+    boolean isMaterialized() {
+        return raw == null;
+    }
+
+    /**
+     * Decodes every field that has not been decoded yet, and drops the
+     * tuple's bytes.
+     */
+    void materialize() {
+        if (raw == null)
+            return;
+        for (int i = 0; i < getTupleDesc().numFields(); i++)
+            getField(i);
+        raw = null;
+    }
+
+    private Field decode(ByteBuffer r, int i) {
+        // a private view, so concurrent readers of the tuple do not share a position
+        ByteBuffer buf = r.duplicate();
+        buf.position(fieldOffsets[i]);
+        try {
+            return getTupleDesc().getFieldType(i).parse(buf);
+        } catch (ParseException e) {
+            throw new IllegalStateException("parsing error in " + getRecordId(), e);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+}
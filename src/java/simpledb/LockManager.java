@@ -1,169 +1,1119 @@
 package simpledb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.sql.Timestamp;
-import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager implements the locks that BufferPool.getPage takes on behalf
+ * of transactions.  Locks are taken at three granularities, tables, pages
+ * and records, in the five modes of {@link LockMode}.  Before locking a
+ * page, a transaction takes an intention lock (IS to read, IX to write) on
+ * the page's table, and before locking a record, on its page as well, so a
+ * transaction can lock a whole table with a single S or X lock and still
+ * conflict with everyone using its pages and records.  A page or record
+ * whose table or page lock already covers the request is not locked at
+ * all.  Record locks let writers of different tuples share a page; see
+ * BufferPool.setRecordLocking.
+ * <p>
+ * Each locked table, page or record has an entry in a lock table, holding the
+ * transactions that hold it, in which modes, and a FIFO queue of waiting
+ * requests.  The table is split into stripes by key, each a plain hash map
+ * guarded by its own monitor, so requests for keys in different stripes
+ * never contend, and an uncontended request takes no lock but its
+ * stripe's.  A request that cannot be granted parks its thread, outside
+ * the stripe's monitor; whoever releases a conflicting lock grants the
+ * request and unparks the thread.
+ * <p>
+ * Each transaction also has a set of the keys it has locked, so releasing
+ * all of its locks at commit or abort takes time proportional to the
+ * number of locks it holds, not to the size of the lock table or the
+ * buffer pool, and releasing one lock takes constant time.  Once a
+ * transaction holds more page locks on one table than the escalation
+ * threshold, its intention lock on the table is escalated to S (or X, if
+ * it has been writing), and its page locks on the table are released.
+ * Escalation never waits: if another transaction's lock conflicts, the
+ * page locks are kept and escalation is tried again on the next page.
+ * <p>
+ * Requests are granted in arrival order, so a stream of readers cannot
+ * starve a writer.  The exception is a transaction converting a lock it
+ * already holds to a stronger mode, which goes to the head of the queue:
+ * it already holds the key, so nothing queued behind it could be granted
+ * first anyway.
+ * <p>
+ * Deadlocks are handled by one of three {@link DeadlockPolicy}s.  By
+ * default they are detected with a {@link WaitsForGraph}: when a request
+ * blocks, the lock manager looks for a cycle through the requesting
+ * transaction, and if there is one, aborts a single victim chosen by the
+ * {@link VictimPolicy}.  Alternatively, wait-die and wound-wait prevent
+ * deadlocks by only letting a transaction wait for one that is younger
+ * (wait-die) or older (wound-wait) than itself, using TransactionId order
+ * as age.  An aborted transaction's blocked requests fail at once with
+ * TransactionAbortedException; it keeps the locks it already holds until
+ * BufferPool.transactionComplete releases them.
+ */
 public class LockManager {
-    private ConcurrentHashMap<PageId, TransactionId> writeMap;
-    private ConcurrentHashMap<PageId, ArrayList<TransactionId>> readMap;
-    private ConcurrentHashMap<TransactionId, ArrayList<PageId>> locks;
-    private ConcurrentHashMap<TransactionId, Integer> counters;
-    private static final int TIMEOUT = 10;
-    private static final int MAX_COUNT = 25;
 
+    /** How deadlocks are resolved. */
+    public enum DeadlockPolicy {
+        /** Detect cycles in the waits-for graph and abort a victim. */
+        DETECT,
+        /**
+         * A transaction may only wait for a younger one; a younger
+         * transaction that would wait for an older one aborts instead.
+         */
+        WAIT_DIE,
+        /**
+         * A transaction may only wait for an older one; an older transaction
+         * that would wait for a younger one aborts ("wounds") it instead.  A
+         * wounded transaction that is not waiting aborts at its next lock
+         * request.
+         */
+        WOUND_WAIT
+    }
+
+    /**
+     * Chooses which transaction on a deadlock cycle to abort.  Ties are
+     * broken in favor of aborting the youngest transaction.
+     */
+    public enum VictimPolicy {
+        /** The transaction that started last. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks. */
+        FEWEST_LOCKS,
+        /** The transaction that has locked the fewest pages for writing, so the least to undo. */
+        LEAST_WORK
+    }
+
+    /**
+     * The lock modes.  Records are only locked S or X; tables and pages
+     * may be locked in any mode.
+     */
+    public enum LockMode {
+        /** Intention shared: the holder reads some pages or records beneath. */
+        IS,
+        /** Intention exclusive: the holder writes some pages or records beneath. */
+        IX,
+        /** Shared. */
+        S,
+        /** Shared with intention exclusive: S plus IX. */
+        SIX,
+        /** Exclusive. */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //  IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false },  // IS
+            { true,  true,  false, false, false },  // IX
+            { true,  false, true,  false, false },  // S
+            { true,  false, false, false, false },  // SIX
+            { false, false, false, false, false },  // X
+        };
+
+        /** Returns true if two transactions may hold this mode and other at once. */
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Returns true if holding this mode grants everything other does. */
+        public boolean covers(LockMode other) {
+            return this == other || this == X || other == IS
+                || (this == SIX && (other == IX || other == S));
+        }
+
+        /**
+         * Returns true if holding this mode on a table or page grants
+         * other on each of its pages or records, so they need no locks of
+         * their own.
+         */
+        public boolean coversChildren(LockMode other) {
+            if (this == X)
+                return true;
+            return (this == S || this == SIX) && (other == S || other == IS);
+        }
+
+        /** Returns the weakest mode that covers both this and other. */
+        public LockMode join(LockMode other) {
+            if (covers(other))
+                return this;
+            if (other.covers(this))
+                return other;
+            return SIX;
+        }
+    }
+
+    /** The lock table key of a whole table. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return ~tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** A lock request, waiting in a LockEntry's queue until granted. */
+    private static class Request {
+        final TransactionId tid;
+        final LockMode mode;
+        final Thread thread;
+        volatile boolean granted;
+        volatile boolean aborted;
+
+        Request(TransactionId tid, LockMode mode) {
+            this.tid = tid;
+            this.mode = mode;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    /**
+     * The lock state of one table, page or record, guarded by the monitor
+     * of its stripe.  Most keys have a single holder and no waiters, so
+     * the holders are kept in small arrays and the queue is only created
+     * when a request has to wait.  An entry with no holders and no waiters is
+     * removed from its stripe.
+     */
+    private static class LockEntry {
+        TransactionId[] holders = new TransactionId[1];
+        LockMode[] modes = new LockMode[1];
+        int numHolders;
+        LinkedList<Request> queue;
+
+        int indexOf(TransactionId tid) {
+            for (int i = 0; i < numHolders; i++)
+                if (holders[i].equals(tid))
+                    return i;
+            return -1;
+        }
+
+        /** Returns the mode tid holds, or null. */
+        LockMode modeOf(TransactionId tid) {
+            int i = indexOf(tid);
+            return i < 0 ? null : modes[i];
+        }
+
+        void setHolder(TransactionId tid, LockMode mode) {
+            int i = indexOf(tid);
+            if (i >= 0) {
+                modes[i] = mode;
+                return;
+            }
+            if (numHolders == holders.length) {
+                TransactionId[] grownHolders = new TransactionId[2 * numHolders];
+                LockMode[] grownModes = new LockMode[2 * numHolders];
+                System.arraycopy(holders, 0, grownHolders, 0, numHolders);
+                System.arraycopy(modes, 0, grownModes, 0, numHolders);
+                holders = grownHolders;
+                modes = grownModes;
+            }
+            holders[numHolders] = tid;
+            modes[numHolders] = mode;
+            numHolders++;
+        }
+
+        boolean removeHolder(TransactionId tid) {
+            int i = indexOf(tid);
+            if (i < 0)
+                return false;
+            numHolders--;
+            holders[i] = holders[numHolders];
+            modes[i] = modes[numHolders];
+            holders[numHolders] = null;
+            modes[numHolders] = null;
+            return true;
+        }
+
+        boolean hasWaiters() {
+            return queue != null && !queue.isEmpty();
+        }
+
+        boolean holds(TransactionId tid, LockMode mode) {
+            LockMode held = modeOf(tid);
+            return held != null && held.covers(mode);
+        }
+
+        /** Returns true if no transaction but tid holds a mode conflicting with mode. */
+        boolean compatible(TransactionId tid, LockMode mode) {
+            for (int i = 0; i < numHolders; i++)
+                if (!modes[i].compatibleWith(mode) && !holders[i].equals(tid))
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * A slice of the lock table.  Its monitor guards its entries, and the
+     * count of locks granted on them in each mode.
+     */
+    private static class Stripe {
+        final HashMap<Object, LockEntry> entries = new HashMap<Object, LockEntry>();
+        final long[] grants = new long[LockMode.values().length];
+    }
+
+    /**
+     * The locks a transaction holds: every table, page and record it has
+     * locked, once each; the mode of each of its table locks; how many
+     * pages of each table it holds locks on; and the pages it has locked for
+     * writing, whether with a page lock, under an X table lock, or by
+     * locking one of their records exclusively, which are the only pages
+     * it can have dirtied.  Guarded by its own monitor,
+     * since a transaction may lock pages from several threads.
+     */
+    private static class TxnLocks {
+        // insertion-ordered, so releaseAll unlocks in locking order, and
+        // one key is removed in constant time
+        final LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
+        final HashMap<Integer, LockMode> tables = new HashMap<Integer, LockMode>();
+        final HashMap<Integer, Integer> pageCounts = new HashMap<Integer, Integer>();
+        final LinkedHashSet<PageId> written = new LinkedHashSet<PageId>();
+
+        void countPage(int tableId, int delta) {
+            Integer n = pageCounts.get(tableId);
+            int count = (n == null ? 0 : n) + delta;
+            if (count > 0)
+                pageCounts.put(tableId, count);
+            else
+                pageCounts.remove(tableId);
+        }
+    }
+
+    /** Default number of lock table stripes. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** Default number of page locks on one table a transaction may hold before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+    private final ConcurrentHashMap<TransactionId, TxnLocks> locks;
+    private final WaitsForGraph<Request> graph;
+    private final DeadlockPolicy policy;
+    private final VictimPolicy victimPolicy;
+    private final Set<TransactionId> wounded =
+        Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong escalations = new AtomicLong();
+    private final LockStats stats = new LockStats();
+    private volatile int escalationThreshold =
+        Integer.getInteger("simpledb.LockEscalation", DEFAULT_ESCALATION_THRESHOLD);
+
+    /**
+     * Creates a LockManager whose deadlock policy is chosen by the
+     * simpledb.DeadlockPolicy system property (see
+     * {@link #parseDeadlockPolicy}) and defaults to DETECT, and whose
+     * victim policy is chosen by the simpledb.DeadlockVictim system
+     * property (see {@link #parseVictimPolicy}) and defaults to YOUNGEST.
+     */
     public LockManager() {
-        writeMap = new ConcurrentHashMap<PageId, TransactionId>();
-        readMap = new ConcurrentHashMap<PageId, ArrayList<TransactionId>>();
-	    locks = new ConcurrentHashMap<TransactionId, ArrayList<PageId>>();
-	    counters = new ConcurrentHashMap<TransactionId, Integer>();
-    }
-
-    public synchronized void addReadLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-	    ArrayList<PageId> pages = new ArrayList<PageId>();
-        if (locks.containsKey(tid)) 
-	       pages = locks.get(tid);
-	    pages.add(pid);
-	    locks.put(tid, pages);       
-
-	    if (writeMap.containsKey(pid) && writeMap.get(pid) == tid) {
-            ArrayList<TransactionId> transList = readMap.get(pid);
-            if(transList == null) {
-                transList = new ArrayList<TransactionId>();
-                transList.add(tid);
-                readMap.put(pid, transList);
-            } else if(!transList.contains(tid)) {
-                transList.add(tid);
-                readMap.put(pid, transList);
+        this(parseDeadlockPolicy(System.getProperty("simpledb.DeadlockPolicy")),
+             parseVictimPolicy(System.getProperty("simpledb.DeadlockVictim")));
+    }
+
+    /**
+     * Creates a LockManager that detects deadlocks.
+     *
+     * @param victimPolicy the policy for choosing which transaction on a
+     *   deadlock cycle to abort
+     */
+    public LockManager(VictimPolicy victimPolicy) {
+        this(DeadlockPolicy.DETECT, victimPolicy);
+    }
+
+    /**
+     * @param policy how deadlocks are resolved
+     * @param victimPolicy the policy for choosing which transaction on a
+     *   deadlock cycle to abort; only used by DETECT
+     */
+    public LockManager(DeadlockPolicy policy, VictimPolicy victimPolicy) {
+        this(policy, victimPolicy, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param policy how deadlocks are resolved
+     * @param victimPolicy the policy for choosing which transaction on a
+     *   deadlock cycle to abort; only used by DETECT
+     * @param numStripes the number of lock table stripes, rounded up to a
+     *   power of two of at least 2
+     */
+    public LockManager(DeadlockPolicy policy, VictimPolicy victimPolicy, int numStripes) {
+        if (numStripes < 1)
+            throw new IllegalArgumentException(String.valueOf(numStripes));
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(numStripes - 1));
+        this.stripes = new Stripe[1 << bits];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+        this.stripeShift = 32 - bits;
+        this.locks = new ConcurrentHashMap<TransactionId, TxnLocks>();
+        this.graph = new WaitsForGraph<Request>();
+        this.policy = policy;
+        this.victimPolicy = victimPolicy;
+    }
+
+    /**
+     * Returns the deadlock policy with the given name.  Recognized names
+     * (case insensitive) are detect, wait-die and wound-wait; null selects
+     * detect.
+     *
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static DeadlockPolicy parseDeadlockPolicy(String name) {
+        if (name == null || name.equalsIgnoreCase("detect"))
+            return DeadlockPolicy.DETECT;
+        else if (name.equalsIgnoreCase("wait-die"))
+            return DeadlockPolicy.WAIT_DIE;
+        else if (name.equalsIgnoreCase("wound-wait"))
+            return DeadlockPolicy.WOUND_WAIT;
+        else
+            throw new IllegalArgumentException("unknown deadlock policy: " + name);
+    }
+
+    /**
+     * Returns the victim policy with the given name.  Recognized names
+     * (case insensitive) are youngest, fewest-locks and least-work; null
+     * selects youngest.
+     *
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static VictimPolicy parseVictimPolicy(String name) {
+        if (name == null || name.equalsIgnoreCase("youngest"))
+            return VictimPolicy.YOUNGEST;
+        else if (name.equalsIgnoreCase("fewest-locks"))
+            return VictimPolicy.FEWEST_LOCKS;
+        else if (name.equalsIgnoreCase("least-work"))
+            return VictimPolicy.LEAST_WORK;
+        else
+            throw new IllegalArgumentException("unknown deadlock victim policy: " + name);
+    }
+
+    /** Returns the policy for resolving deadlocks. */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /** Returns the policy for choosing deadlock victims. */
+    public VictimPolicy getVictimPolicy() {
+        return victimPolicy;
+    }
+
+    /** Returns the number of deadlocks detected, each of which aborted one transaction. */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /**
+     * Returns the number of aborts the deadlock policy has caused: victims
+     * of detected deadlocks, requests that died under wait-die, or
+     * transactions wounded under wound-wait.
+     */
+    public long getAbortCount() {
+        return aborts.get();
+    }
+
+    /** Returns the number of times page locks were escalated to a table lock. */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /**
+     * Returns the number of locks granted in the given mode, counting the
+     * conversion of a held lock to a stronger mode as a lock in the
+     * stronger mode.
+     */
+    public long getAcquireCount(LockMode mode) {
+        long n = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                n += s.grants[mode.ordinal()];
             }
+        }
+        return n;
+    }
+
+    /** Returns the statistics of the requests that had to wait. */
+    public LockStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Resets the lock, wait, deadlock, abort and escalation counts to
+     * zero.
+     */
+    public void resetStats() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                Arrays.fill(s.grants, 0);
+            }
+        }
+        stats.reset();
+        deadlocks.set(0);
+        aborts.set(0);
+        escalations.set(0);
+    }
+
+    /**
+     * Returns a report of the lock manager's counters: locks granted in
+     * each mode, waits, deadlocks, aborts and escalations, and the n
+     * tables, pages and records waited for longest.
+     */
+    public String describeStats(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("locks granted:");
+        for (LockMode mode : LockMode.values())
+            sb.append(' ').append(mode).append(' ').append(getAcquireCount(mode));
+        sb.append('\n');
+        sb.append(stats).append('\n');
+        sb.append(String.format("%d deadlocks, %d aborts, %d escalations%n",
+                getDeadlockCount(), getAbortCount(), getEscalationCount()));
+        for (LockStats.Contention c : stats.topContended(n))
+            sb.append("  ").append(c).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Returns a description of who is waiting for whom: for each table,
+     * page or record with requests waiting on it, the transactions that
+     * hold it, in which modes, and the queued requests in order.  Each
+     * waiting request waits for the conflicting holders and the requests
+     * ahead of it.  The stripes are read one at a time, so waits that
+     * change meanwhile may be seen half changed.
+     */
+    public String describeWaits() {
+        StringBuilder sb = new StringBuilder();
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                for (Map.Entry<Object, LockEntry> en : s.entries.entrySet()) {
+                    LockEntry e = en.getValue();
+                    if (!e.hasWaiters())
+                        continue;
+                    sb.append(en.getKey()).append(": held by");
+                    for (int i = 0; i < e.numHolders; i++)
+                        sb.append(' ').append(e.holders[i].getId())
+                            .append('(').append(e.modes[i]).append(')');
+                    sb.append("; waiting");
+                    for (Request r : e.queue)
+                        sb.append(' ').append(r.tid.getId())
+                            .append('(').append(r.mode).append(')');
+                    sb.append('\n');
+                }
+            }
+        }
+        if (sb.length() == 0)
+            sb.append("no transaction is waiting\n");
+        return sb.toString();
+    }
+
+    /**
+     * Sets the number of page locks on one table a transaction may hold
+     * before they are escalated to a table lock; 0 disables escalation.
+     * The default is DEFAULT_ESCALATION_THRESHOLD, or the value of the
+     * simpledb.LockEscalation system property.
+     */
+    public void setEscalationThreshold(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException(String.valueOf(pages));
+        this.escalationThreshold = pages;
+    }
+
+    /** Return the escalation threshold, in page locks per table */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    /**
+     * Acquires a shared lock on pid for tid, waiting if another transaction
+     * holds or is waiting for a conflicting lock on it or its table.
+     * Returns at once if tid already holds a lock on pid or a shared lock
+     * on its table.
+     *
+     * @throws TransactionAbortedException if tid was aborted by the
+     *   deadlock policy
+     */
+    public void addReadLock(TransactionId tid, PageId pid)
+            throws TransactionAbortedException {
+        lockPage(tid, pid, LockMode.S);
+    }
+
+    /**
+     * Acquires an exclusive lock on pid for tid, upgrading tid's shared
+     * lock if it has one, and waiting while any other transaction holds a
+     * lock on it or a conflicting lock on its table.  Returns at once if
+     * tid holds an exclusive lock on pid's table.
+     *
+     * @throws TransactionAbortedException if tid was aborted by the
+     *   deadlock policy
+     */
+    public void addWriteLock(TransactionId tid, PageId pid)
+            throws TransactionAbortedException {
+        lockPage(tid, pid, LockMode.X);
+    }
+
+    /**
+     * Acquires a lock on a whole table for tid, converting tid's existing
+     * lock on the table to the weakest mode that covers both.  An S lock
+     * lets tid read every page of the table without locking them one by
+     * one, and an X lock lets it write them.
+     *
+     * @throws TransactionAbortedException if tid was aborted by the
+     *   deadlock policy
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        acquire(tid, new TableKey(tableId), mode);
+    }
+
+    /**
+     * Acquires an intention lock on pid for tid, IX if exclusive and IS
+     * otherwise, so that tid can lock records of the page.  Returns at once
+     * if tid's locks on pid or its table already cover the page.
+     *
+     * @throws TransactionAbortedException if tid was aborted by the
+     *   deadlock policy
+     */
+    public void addIntentionLock(TransactionId tid, PageId pid, boolean exclusive)
+            throws TransactionAbortedException {
+        lockPage(tid, pid, exclusive ? LockMode.IX : LockMode.IS);
+    }
+
+    /**
+     * Acquires a lock on a record for tid, exclusive or shared, after
+     * the matching intention locks on its page and table.  Returns at once
+     * if tid's locks on the page or table already cover the record.
+     *
+     * @throws TransactionAbortedException if tid was aborted by the
+     *   deadlock policy
+     */
+    public void addRecordLock(TransactionId tid, RecordId rid, boolean exclusive)
+            throws TransactionAbortedException {
+        LockMode mode = exclusive ? LockMode.X : LockMode.S;
+        PageId pid = rid.getPageId();
+        if (lockPage(tid, pid, exclusive ? LockMode.IX : LockMode.IS))
             return;
+        if (!holdsPage(tid, pid, mode))
+            acquire(tid, rid, mode);
+    }
+
+    /**
+     * Acquires an exclusive lock on a record for tid if that can be done
+     * without waiting, and returns true if tid now holds it.  tid must
+     * already hold an IX lock on the record's page (see
+     * {@link #addIntentionLock}).  Used to claim an empty slot, which may
+     * still be locked by a transaction that deleted its tuple.
+     */
+    public boolean tryRecordLock(TransactionId tid, RecordId rid) {
+        PageId pid = rid.getPageId();
+        LockMode tableMode = tableLockOf(tid, pid.getTableId());
+        if (tableMode != null && tableMode.coversChildren(LockMode.X))
+            return true;
+        return holdsPage(tid, pid, LockMode.X) || tryAcquire(tid, rid, LockMode.X);
+    }
+
+    /** Returns true if tid holds an exclusive lock on rid, its page or its table. */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid) {
+        PageId pid = rid.getPageId();
+        if (holds(tid, pid, LockMode.X))
+            return true;
+        Stripe s = stripeFor(rid);
+        synchronized (s) {
+            LockEntry e = s.entries.get(rid);
+            return e != null && e.holds(tid, LockMode.X);
         }
+    }
 
-        while(true) {
-            if(!writeMap.containsKey(pid)) {
-                ArrayList<TransactionId> transList = readMap.get(pid);
-                if(transList == null) {
-                    transList = new ArrayList<TransactionId>();
-                    transList.add(tid);
-                    readMap.put(pid, transList);
-                     break;
-                } else if(!transList.contains(tid)) {
-                    transList.add(tid);
-                    readMap.put(pid, transList);
-                    break;
-                } 
-            }
-
-            if (counters.containsKey(tid)) {
-                Integer value = counters.get(tid);
-                int count = value.intValue() + 1;
-                if (count > MAX_COUNT) {
-                    if (locks.containsKey(tid)) {
-                        ArrayList<PageId> array = locks.get(tid);
-                        Object[] pagesArray = array.toArray();
-                        for (int i = 0; i < pagesArray.length; i++) {
-                            PageId processId = (PageId) pagesArray[i];
-                            Database.getBufferPool().releasePage(tid, processId);
-                        }
-                    }
-                    if (Thread.activeCount() > 1)
-                        throw new TransactionAbortedException();
-                    else
-                        break;
+    /** Returns the mode of tid's lock on the table, or null if it has none. */
+    public LockMode tableLockOf(TransactionId tid, int tableId) {
+        TxnLocks held = locks.get(tid);
+        if (held == null)
+            return null;
+        synchronized (held) {
+            return held.tables.get(tableId);
+        }
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (policy == DeadlockPolicy.WOUND_WAIT && wounded.contains(tid))
+            throw new TransactionAbortedException();
+    }
+
+    /**
+     * Locks pid in mode after the matching intention lock on its table.
+     * Returns true if tid's table lock already covered the page, so no
+     * page lock was taken.
+     */
+    private boolean lockPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        checkWounded(tid);
+        int tableId = pid.getTableId();
+        LockMode intent = mode == LockMode.X || mode == LockMode.IX
+            ? LockMode.IX : LockMode.IS;
+        TxnLocks held = locksOf(tid);
+        LockMode tableMode;
+        synchronized (held) {
+            tableMode = held.tables.get(tableId);
+            if (tableMode != null && tableMode.coversChildren(mode)) {
+                if (mode == LockMode.X || mode == LockMode.IX)
+                    held.written.add(pid);
+                return true;
+            }
+        }
+        if (tableMode == null || !tableMode.covers(intent))
+            acquire(tid, new TableKey(tableId), intent);
+        acquire(tid, pid, mode);
+
+        int threshold = escalationThreshold;
+        if (threshold > 0) {
+            Integer count;
+            synchronized (held) {
+                count = held.pageCounts.get(tableId);
+            }
+            if (count != null && count > threshold)
+                escalate(tid, held, tableId);
+        }
+        return false;
+    }
+
+    /**
+     * Replaces tid's page locks on a table with an S or X lock on the
+     * table, if that can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, TxnLocks held, int tableId) {
+        LockMode current;
+        synchronized (held) {
+            current = held.tables.get(tableId);
+        }
+        LockMode target = current == LockMode.IS || current == LockMode.S
+            ? LockMode.S : LockMode.X;
+        if (!tryAcquire(tid, new TableKey(tableId), target))
+            return;
+        escalations.incrementAndGet();
+
+        List<PageId> pages = new ArrayList<PageId>();
+        synchronized (held) {
+            for (Iterator<Object> it = held.keys.iterator(); it.hasNext(); ) {
+                Object key = it.next();
+                if (key instanceof PageId && ((PageId) key).getTableId() == tableId) {
+                    pages.add((PageId) key);
+                    it.remove();
                 }
-                counters.put(tid, new Integer(count));
-            } else {
-                counters.put(tid, new Integer(1));
             }
+            held.pageCounts.remove(tableId);
+        }
+        // the pages stay in held.written: the table lock covers them now
+        for (PageId pid : pages)
+            unlock(tid, pid);
+    }
 
-            try {
-            Thread.sleep(TIMEOUT);
-            } catch(InterruptedException e) {
-                e.printStackTrace();
+    private void acquire(TransactionId tid, Object key, LockMode mode)
+            throws TransactionAbortedException {
+        Stripe s = stripeFor(key);
+        LockEntry e;
+        Request r;
+        synchronized (s) {
+            e = s.entries.get(key);
+            if (e == null) {
+                e = new LockEntry();
+                s.entries.put(key, e);
+            }
+            LockMode current = e.modeOf(tid);
+            if (current != null && current.covers(mode))
+                return;
+
+            boolean upgrade = current != null;
+            LockMode want = upgrade ? current.join(mode) : mode;
+            if ((upgrade || !e.hasWaiters()) && e.compatible(tid, want)) {
+                grant(e, key, tid, want);
+                return;
+            }
+
+            r = new Request(tid, want);
+            if (e.queue == null)
+                e.queue = new LinkedList<Request>();
+            if (upgrade)
+                e.queue.addFirst(r);
+            else
+                e.queue.addLast(r);
+            updateWaits(e);
+            stats.queued(key, want, e.queue.size());
+
+            if (policy == DeadlockPolicy.DETECT)
+                breakCycles(r);
+            if (r.aborted) {
+                withdraw(s, e, key, r);
+                throw new TransactionAbortedException();
             }
         }
+        await(s, e, key, r);
+    }
 
+    /**
+     * Grants tid a lock on key, converting any lock it holds, if that can
+     * be done without waiting.  Returns true if the lock was granted.
+     */
+    private boolean tryAcquire(TransactionId tid, Object key, LockMode mode) {
+        Stripe s = stripeFor(key);
+        synchronized (s) {
+            LockEntry e = s.entries.get(key);
+            if (e == null) {
+                e = new LockEntry();
+                s.entries.put(key, e);
+            }
+            LockMode current = e.modeOf(tid);
+            if (current != null && current.covers(mode))
+                return true;
+            LockMode want = current != null ? current.join(mode) : mode;
+            if ((current != null || !e.hasWaiters()) && e.compatible(tid, want)) {
+                grant(e, key, tid, want);
+                return true;
+            }
+            retireIfUnused(s, e, key);
+            return false;
+        }
+    }
+
+    /**
+     * Parks until r is granted or aborted.  An aborted request that was
+     * granted in the meantime keeps its lock.
+     */
+    private void await(Stripe s, LockEntry e, Object key, Request r)
+            throws TransactionAbortedException {
+        boolean interrupted = false;
+        long start = System.nanoTime();
+        try {
+            while (!r.granted && !r.aborted) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        } finally {
+            if (!r.granted) {
+                synchronized (s) {
+                    if (!r.granted)
+                        withdraw(s, e, key, r);
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            stats.waited(key, System.nanoTime() - start);
+        }
+        if (!r.granted || r.aborted)
+            throw new TransactionAbortedException();
     }
 
-    public synchronized void addWriteLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
-    	ArrayList<PageId> pages = new ArrayList<PageId>();
-        if (locks.containsKey(tid)) 
-    	    pages = locks.get(tid);
-    	pages.add(pid);
-    	locks.put(tid, pages); 
+    private static void abort(Request r) {
+        r.aborted = true;
+        LockSupport.unpark(r.thread);
+    }
 
-        if (readMap.containsKey(pid) && readMap.get(pid).contains(tid) && readMap.get(pid).size() == 1) {
-            writeMap.put(pid, tid);
+    private void abortRequests(TransactionId tid) {
+        for (Request r : graph.requestsOf(tid))
+            abort(r);
+    }
+
+    /** Records a granted lock.  Called with the stripe's monitor held. */
+    private void grant(LockEntry e, Object key, TransactionId tid, LockMode mode) {
+        boolean wasHolder = e.indexOf(tid) >= 0;
+        e.setHolder(tid, mode);
+        stripeFor(key).grants[mode.ordinal()]++;
+        TxnLocks held = locksOf(tid);
+        synchronized (held) {
+            if (!wasHolder)
+                held.keys.add(key);
+            if (key instanceof TableKey) {
+                held.tables.put(((TableKey) key).tableId, mode);
+            } else if (key instanceof RecordId) {
+                if (mode == LockMode.X)
+                    held.written.add(((RecordId) key).getPageId());
+            } else {
+                PageId pid = (PageId) key;
+                if (!wasHolder)
+                    held.countPage(pid.getTableId(), 1);
+                if (mode == LockMode.X)
+                    held.written.add(pid);
+            }
         }
-        if(writeMap.get(pid) == tid)
-            return;
+    }
 
-        while(true) {
-            ArrayList<TransactionId> transList = readMap.get(pid);
-            if(!writeMap.containsKey(pid) && (transList == null || transList.size() == 0)) {
-                this.addReadLock(tid,pid);
-                writeMap.put(pid, tid);
+    /**
+     * Grants the requests at the head of e's queue that have become
+     * compatible, wakes their threads, and updates the edges of those
+     * still waiting.  Called with the stripe's monitor held.
+     */
+    private void grantWaiters(LockEntry e, Object key) {
+        if (e.queue == null)
+            return;
+        while (!e.queue.isEmpty()) {
+            Request r = e.queue.getFirst();
+            if (r.aborted) {
+                // its thread is about to withdraw it
+                e.queue.removeFirst();
+                graph.remove(r.tid, r);
+                continue;
+            }
+            if (!e.compatible(r.tid, r.mode))
                 break;
+            e.queue.removeFirst();
+            grant(e, key, r.tid, r.mode);
+            graph.remove(r.tid, r);
+            r.granted = true;
+            LockSupport.unpark(r.thread);
+        }
+        updateWaits(e);
+    }
+
+    /**
+     * Sets the waits-for edges of every request queued on e: a request
+     * waits for the holders whose modes conflict with it, and for the
+     * requests ahead of it in the queue.  Under wait-die and wound-wait,
+     * also aborts whatever the new edges do not allow.  Called with the
+     * stripe's monitor held.
+     */
+    private void updateWaits(LockEntry e) {
+        if (e.queue == null)
+            return;
+        Set<TransactionId> ahead = new HashSet<TransactionId>();
+        for (Request r : e.queue) {
+            if (r.aborted)
+                continue;
+            Set<TransactionId> blockers = new HashSet<TransactionId>(ahead);
+            for (int i = 0; i < e.numHolders; i++)
+                if (!e.modes[i].compatibleWith(r.mode))
+                    blockers.add(e.holders[i]);
+            blockers.remove(r.tid);
+            if (policy != DeadlockPolicy.DETECT)
+                prevent(r, blockers);
+            graph.setWaits(r.tid, r, blockers);
+            if (!r.aborted)
+                ahead.add(r.tid);
+        }
+    }
+
+    /**
+     * Applies wait-die or wound-wait to request r, which waits for
+     * blockers.  Waiting is only allowed in one direction of age, so the
+     * waits-for graph cannot have a cycle.
+     */
+    private void prevent(Request r, Set<TransactionId> blockers) {
+        for (TransactionId b : blockers) {
+            boolean older = r.tid.getId() < b.getId();
+            if (policy == DeadlockPolicy.WAIT_DIE && !older) {
+                aborts.incrementAndGet();
+                abort(r);
+                return;
             }
-            else {
-                if (counters.containsKey(tid)) {
-                    Integer value = counters.get(tid);
-                    int count = value.intValue() + 1;
-                    if (count > MAX_COUNT) {
-                        if (locks.containsKey(tid)) {
-                            ArrayList<PageId> array = locks.get(tid);
-                            Object[] pagesArray = array.toArray();
-                            for (int i = 0; i < pagesArray.length; i++) {
-                                PageId processId = (PageId) pagesArray[i];
-                                Database.getBufferPool().releasePage(tid, processId);
-                            }
-                        }
-                        if (Thread.activeCount() > 1)
-                            throw new TransactionAbortedException();
-                        else
-                            break;
-                    }
-                    counters.put(tid, new Integer(count));
-                } else {
-                    counters.put(tid, new Integer(1));
-                }
+            if (policy == DeadlockPolicy.WOUND_WAIT && older) {
+                if (wounded.add(b))
+                    aborts.incrementAndGet();
+                abortRequests(b);
+            }
+        }
+    }
+
+    /**
+     * Removes a request that was not granted.  Called with the stripe's
+     * monitor held.
+     */
+    private void withdraw(Stripe s, LockEntry e, Object key, Request r) {
+        e.queue.remove(r);
+        graph.remove(r.tid, r);
+        grantWaiters(e, key);
+        retireIfUnused(s, e, key);
+    }
+
+    /**
+     * Aborts a victim on each cycle through the transaction of request r,
+     * which has just blocked.  There may be several such cycles, and
+     * aborting one victim only breaks those that pass through it.
+     */
+    private void breakCycles(Request r) {
+        Set<TransactionId> victims = new HashSet<TransactionId>();
+        List<TransactionId> cycle;
+        while ((cycle = graph.findCycle(r.tid, victims)) != null) {
+            deadlocks.incrementAndGet();
+            aborts.incrementAndGet();
+            TransactionId victim = chooseVictim(cycle);
+            if (victim.equals(r.tid)) {
+                r.aborted = true;
+                return;
+            }
+            abortRequests(victim);
+            victims.add(victim);
+        }
+    }
 
-                try {
-                    Thread.sleep(TIMEOUT);
-                } catch(InterruptedException e) {
-                    e.printStackTrace();
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        int victimCost = 0;
+        for (TransactionId tid : cycle) {
+            int cost = 0;
+            if (victimPolicy != VictimPolicy.YOUNGEST) {
+                TxnLocks held = locks.get(tid);
+                if (held != null) {
+                    synchronized (held) {
+                        cost = victimPolicy == VictimPolicy.FEWEST_LOCKS
+                            ? held.keys.size() : held.written.size();
+                    }
                 }
             }
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && tid.getId() > victim.getId())) {
+                victim = tid;
+                victimCost = cost;
+            }
         }
+        return victim;
     }
 
-    public synchronized void removeReadLock(TransactionId tid, PageId pid) {
-    	if (locks.containsKey(tid)) {
-    	    ArrayList<PageId> pages = locks.get(tid);
-    	    pages.remove(pid);
-    	}
+    /**
+     * Releases tid's lock on pid, if it has one, and grants the requests
+     * that were waiting for it.  tid's lock on pid's table is kept.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        TxnLocks held = locks.get(tid);
+        if (held != null) {
+            synchronized (held) {
+                if (held.keys.remove(pid))
+                    held.countPage(pid.getTableId(), -1);
+                held.written.remove(pid);
+            }
+        }
+        unlock(tid, pid);
+    }
 
-        ArrayList<TransactionId> transList = readMap.get(pid);
-        transList.remove(tid);
-        readMap.put(pid, transList);
+    /**
+     * Releases every lock held by tid, including locks on pages that are
+     * no longer in the buffer pool.  Only visits the keys tid has locked.
+     */
+    public void releaseAll(TransactionId tid) {
+        wounded.remove(tid);
+        TxnLocks held = locks.remove(tid);
+        if (held == null)
+            return;
+        Object[] keys;
+        synchronized (held) {
+            keys = held.keys.toArray();
+        }
+        for (Object key : keys)
+            unlock(tid, key);
     }
 
-    public synchronized void removewriteLock(TransactionId tid, PageId pid) {
-    	if (locks.containsKey(tid)) {
-    	    ArrayList<PageId> pages = locks.get(tid);
-    	    pages.remove(pid);
-    	}
+    /**
+     * Returns the pages tid has locked for writing, with a page lock or
+     * under an exclusive table lock.  Since pages are only dirtied under
+     * such a lock, these are the only pages tid can have dirtied.
+     */
+    public List<PageId> exclusivePages(TransactionId tid) {
+        TxnLocks held = locks.get(tid);
+        if (held == null)
+            return new ArrayList<PageId>();
+        synchronized (held) {
+            return new ArrayList<PageId>(held.written);
+        }
+    }
 
-        writeMap.remove(pid);
+    private void unlock(TransactionId tid, Object key) {
+        Stripe s = stripeFor(key);
+        synchronized (s) {
+            LockEntry e = s.entries.get(key);
+            if (e == null || !e.removeHolder(tid))
+                return;
+            grantWaiters(e, key);
+            retireIfUnused(s, e, key);
+        }
     }
 
+    /**
+     * Returns true if tid holds a lock on pid, or a lock on its table that
+     * lets it read pid.
+     */
     public boolean holdsReadLock(TransactionId tid, PageId pid) {
-        return readMap.get(pid).contains(tid);
+        return holds(tid, pid, LockMode.S);
     }
 
+    /**
+     * Returns true if tid holds an exclusive lock on pid or on its table.
+     */
     public boolean holdsWriteLock(TransactionId tid, PageId pid) {
-        return writeMap.get(pid) == tid;
+        return holds(tid, pid, LockMode.X);
+    }
+
+    private boolean holds(TransactionId tid, PageId pid, LockMode mode) {
+        LockMode tableMode = tableLockOf(tid, pid.getTableId());
+        if (tableMode != null && tableMode.coversChildren(mode))
+            return true;
+        Stripe s = stripeFor(pid);
+        synchronized (s) {
+            LockEntry e = s.entries.get(pid);
+            return e != null && e.holds(tid, mode);
+        }
+    }
+
+    /** Returns true if tid's lock on pid itself covers mode on its records. */
+    private boolean holdsPage(TransactionId tid, PageId pid, LockMode mode) {
+        Stripe s = stripeFor(pid);
+        synchronized (s) {
+            LockEntry e = s.entries.get(pid);
+            LockMode held = e == null ? null : e.modeOf(tid);
+            return held != null && held.coversChildren(mode);
+        }
+    }
+
+    /** Returns true if tid has a lock request waiting. */
+    public boolean isWaiting(TransactionId tid) {
+        return graph.isWaiting(tid);
     }
 
+    /**
+     * Returns the stripe of a key.  The hash is scrambled so that the
+     * pages of one table, whose hash codes are consecutive, spread over
+     * all the stripes.
+     */
+    private Stripe stripeFor(Object key) {
+        return stripes[(key.hashCode() * 0x9E3779B9) >>> stripeShift];
+    }
+
+    /**
+     * Drops e from its stripe if it is unused.  Called with the stripe's
+     * monitor held.
+     */
+    private void retireIfUnused(Stripe s, LockEntry e, Object key) {
+        if (e.numHolders == 0 && !e.hasWaiters() && s.entries.get(key) == e)
+            s.entries.remove(key);
+    }
+
+    private TxnLocks locksOf(TransactionId tid) {
+        TxnLocks held = locks.get(tid);
+        if (held == null) {
+            TxnLocks fresh = new TxnLocks();
+            held = locks.putIfAbsent(tid, fresh);
+            if (held == null)
+                held = fresh;
+        }
+        return held;
+    }
 }
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LockStats collects what the LockManager's waiting requests cost: how
+ * many requests waited in each mode, a histogram of how long they waited,
+ * and, for each table, page or record, how many requests waited on it, for
+ * how long in all, and how deep its queue got.  Only requests that wait
+ * are recorded, so granting a lock at once costs nothing here.
+ * <p>
+ * Wait times are counted in power-of-two buckets of microseconds: bucket 0
+ * holds waits under 1 us, and bucket i waits of at least 2^(i-1) us and
+ * under 2^i us; the last bucket also holds everything longer.
+ *
+ * @see LockManager#getStats
+ */
+public class LockStats {
+
+    /** Number of wait time buckets. */
+    public static final int BUCKETS = 32;
+
+    /** The waits recorded on one table, page or record. */
+    public static class Contention {
+        private final Object key;
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        Contention(Object key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the locked object: a PageId, a RecordId, or for a whole
+         * table, an object naming it.
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        /** Returns the number of requests that waited for it. */
+        public long getWaitCount() {
+            return waits.get();
+        }
+
+        /** Returns the total time requests waited for it, in nanoseconds. */
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        /** Returns the most requests queued on it at once. */
+        public int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        public String toString() {
+            return String.format("%s: %d waits, %.3f ms waiting, queue depth %d",
+                    key, getWaitCount(), getWaitNanos() / 1e6, getMaxQueueDepth());
+        }
+    }
+
+    private final AtomicLongArray waitsByMode =
+        new AtomicLongArray(LockManager.LockMode.values().length);
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final ConcurrentHashMap<Object, Contention> contention =
+        new ConcurrentHashMap<Object, Contention>();
+
+    /**
+     * Records that a request in the given mode was queued on key behind
+     * depth - 1 others.
+     */
+    void queued(Object key, LockManager.LockMode mode, int depth) {
+        waitsByMode.incrementAndGet(mode.ordinal());
+        Contention c = contention.get(key);
+        if (c == null) {
+            Contention fresh = new Contention(key);
+            c = contention.putIfAbsent(key, fresh);
+            if (c == null)
+                c = fresh;
+        }
+        c.waits.incrementAndGet();
+        int max;
+        while ((max = c.maxQueueDepth.get()) < depth
+                && !c.maxQueueDepth.compareAndSet(max, depth))
+            ;
+    }
+
+    /** Records that a request queued on key waited nanos before it was granted or aborted. */
+    void waited(Object key, long nanos) {
+        waitNanos.addAndGet(nanos);
+        histogram.incrementAndGet(bucketOf(nanos / 1000));
+        Contention c = contention.get(key);
+        if (c != null)
+            c.waitNanos.addAndGet(nanos);
+    }
+
+    private static int bucketOf(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /** Returns the number of requests that waited. */
+    public long getWaitCount() {
+        long n = 0;
+        for (int i = 0; i < waitsByMode.length(); i++)
+            n += waitsByMode.get(i);
+        return n;
+    }
+
+    /** Returns the number of requests in the given mode that waited. */
+    public long getWaitCount(LockManager.LockMode mode) {
+        return waitsByMode.get(mode.ordinal());
+    }
+
+    /** Returns the total time requests waited, in nanoseconds. */
+    public long getWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /** Returns the number of waits in each bucket. */
+    public long[] getWaitHistogram() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = histogram.get(i);
+        return counts;
+    }
+
+    /**
+     * Returns an upper bound, in microseconds, on the wait time of the
+     * given fraction of waits, for example 0.99 for the 99th percentile;
+     * or 0 if no request has waited.
+     */
+    public long getWaitPercentile(double fraction) {
+        if (fraction < 0 || fraction > 1)
+            throw new IllegalArgumentException(String.valueOf(fraction));
+        long[] counts = getWaitHistogram();
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        if (total == 0)
+            return 0;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= fraction * total)
+                return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Returns the n tables, pages and records that requests have waited
+     * longest for in all, longest first.
+     */
+    public List<Contention> topContended(int n) {
+        List<Contention> all = new ArrayList<Contention>(contention.values());
+        Collections.sort(all, new Comparator<Contention>() {
+            public int compare(Contention a, Contention b) {
+                long x = a.getWaitNanos(), y = b.getWaitNanos();
+                if (x != y)
+                    return x > y ? -1 : 1;
+                long u = a.getWaitCount(), v = b.getWaitCount();
+                return u > v ? -1 : (u < v ? 1 : 0);
+            }
+        });
+        return all.size() > n ? new ArrayList<Contention>(all.subList(0, n)) : all;
+    }
+
+    /** Forgets every wait recorded. */
+    public void reset() {
+        for (int i = 0; i < waitsByMode.length(); i++)
+            waitsByMode.set(i, 0);
+        for (int i = 0; i < BUCKETS; i++)
+            histogram.set(i, 0);
+        waitNanos.set(0);
+        contention.clear();
+    }
+
+    public String toString() {
+        return String.format("%d waits, %.3f ms in all; p50 < %d us, p99 < %d us",
+                getWaitCount(), getWaitNanos() / 1e6,
+                getWaitPercentile(0.5), getWaitPercentile(0.99));
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer holds the records appended to the LogFile until they are
+ * written to the file.  Records are copied into a ring of fixed-size
+ * segments.  When the ring fills up, or the LogFile needs the records in
+ * the file, every filled segment is written with one gathering write at
+ * the end of the file, and the segments are reused.  So appending a
+ * record costs no system call, and the log is written in large
+ * sequential writes.
+ * <p>
+ * A LogBuffer is not thread safe; the LogFile appends to it and writes it
+ * holding its own monitor.
+ */
+public class LogBuffer extends OutputStream {
+
+    /** Default size of a segment, in bytes. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    /** Default number of segments in the ring. */
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    private final ByteBuffer[] segments;
+    // the segment being filled; those before it are full
+    private int current = 0;
+    private FileChannel channel;
+    // the file offset the first buffered byte goes to
+    private long position;
+    private long writes = 0;
+
+    /**
+     * Creates a buffer of the given number of segments of the given size,
+     * which must be reset before it is used.
+     */
+    public LogBuffer(int numSegments, int segmentSize) {
+        if (numSegments < 1 || segmentSize < 1)
+            throw new IllegalArgumentException(numSegments + " x " + segmentSize);
+        segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++)
+            segments[i] = ByteBuffer.allocateDirect(segmentSize);
+    }
+
+    /** Creates a buffer of DEFAULT_SEGMENTS segments of DEFAULT_SEGMENT_SIZE bytes. */
+    public LogBuffer() {
+        this(DEFAULT_SEGMENTS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Discards anything buffered, and directs the buffer to write to the
+     * given file from the given offset on.
+     */
+    public void reset(FileChannel channel, long position) {
+        for (int i = 0; i <= current; i++)
+            segments[i].clear();
+        current = 0;
+        this.channel = channel;
+        this.position = position;
+    }
+
+    public void write(int b) throws IOException {
+        if (!segments[current].hasRemaining())
+            advance();
+        segments[current].put((byte) b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!segments[current].hasRemaining())
+                advance();
+            int n = Math.min(len, segments[current].remaining());
+            segments[current].put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** Moves on to the next segment, writing the ring out if it is full. */
+    private void advance() throws IOException {
+        if (current == segments.length - 1)
+            flush();
+        else
+            current++;
+    }
+
+    /** Writes every buffered byte to the file.  Does not force it to disk. */
+    public void flush() throws IOException {
+        long size = size();
+        if (size == 0)
+            return;
+        for (int i = 0; i <= current; i++)
+            segments[i].flip();
+        channel.position(position);
+        long left = size;
+        while (left > 0)
+            left -= channel.write(segments, 0, current + 1);
+        writes++;
+        position += size;
+        for (int i = 0; i <= current; i++)
+            segments[i].clear();
+        current = 0;
+    }
+
+    /** Returns the number of bytes buffered. */
+    public long size() {
+        return (long) current * segments[0].capacity() + segments[current].position();
+    }
+
+    /** Returns the file offset just past the last byte appended. */
+    public long end() {
+        return position + size();
+    }
+
+    /** Returns the number of writes made to the file. */
+    public long getWriteCount() {
+        return writes;
+    }
+}
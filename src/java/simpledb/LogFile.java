@@ -2,7 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.*;
 
 /**
@@ -15,23 +21,41 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening.)  The BufferPool writes an UPDATE record while
+it holds the latch of the page it is flushing, and the log file
+flushes and restores BufferPool pages (on checkpoints and rollbacks),
+which latches them.  To avoid deadlock, a LogFile operation that needs
+to access the BufferPool must not hold this object's monitor while it
+does so: it reads and appends the log in synchronized blocks, and
+touches pages between them.  Only recover(), which runs before any
+transaction, holds the monitor throughout.
 
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+<u> Group commit: </u>
+<p>
 
-       ..
+By default every commit forces the log, so commits are capped at one
+fsync each.  In group commit mode (see setGroupCommit) a committing
+transaction instead queues its COMMIT record and waits on a future.  A
+log flusher thread collects the queued records, for up to a maximum
+delay or until a batch is full, appends them in one write, forces the
+log once, and completes every future in the batch.  Threads that only
+need the log on disk, like the BufferPool before it writes a page
+(see sync), join the same batches.
 
-       }
-    }
-</pre>
+<p>
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are not written to the file as they are appended.  They are
+serialized into a LogBuffer and written in large sequential writes,
+when the buffer fills or the log must be forced or read.  Each record
+has a log sequence number (LSN): its offset in the log plus the bytes
+logTruncate has dropped from the front of it, so LSNs only grow.  A
+page carries the LSN of the last record logging it (see Page#getLSN),
+and the BufferPool waits only until the log is on disk up to that LSN
+before writing the page (see sync(long)); if it already is, the log is
+not forced again.
 */
 
 /**
@@ -51,15 +75,22 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, CLR, SLOT_UPDATE and SLOT_CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  A serialized page
+starts with the integer id its type was registered under (see
+registerPageType), or 0 followed by the names of its page and id
+classes.
+
+<li> SLOT_UPDATE records log the update of a HeapPage as a PageDelta:
+the tuple bytes of just the slots that changed, before and after.
+Inserting a tuple logs one slot instead of two whole pages.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
@@ -67,8 +98,37 @@ of the record is an integer count of the number of transactions, as well
 as a long integer transaction id and a long integer first record offset
 for each active transaction.
 
+<li> CLR (compensation log) records are written when an update is
+undone.  They consist of the image the page was restored to, and the
+offset of the UPDATE record undone.  The transaction's updates from
+that offset on are undone; those before it remain to be.  A CLR is
+only ever redone, never undone, so recovery that is interrupted and
+run again does not undo an update twice.
+
+<li> SLOT_CLR records are the CLRs of SLOT_UPDATE records.  They
+consist of the PageDelta that undid the update, and the offset of the
+SLOT_UPDATE record undone.
+
 </ul>
 
+<p> Recovery follows ARIES.  An analysis pass reads the log from the
+last checkpoint to find the transactions that were running at the
+crash (the losers).  A redo pass repeats history from the checkpoint,
+writing the after image of every UPDATE and CLR record and redoing
+every SLOT_UPDATE and SLOT_CLR delta.  An undo pass then restores the
+before images of the losers' updates, newest first, logging a CLR for
+each, and ends each loser with an ABORT record.
+Since pages are written when their transactions commit (FORCE) and
+when a checkpoint is taken, redo need not start before the checkpoint,
+so restart reads the log written since the last checkpoint plus that
+of the transactions running at it.  A PageDelta is redone or undone
+by setting its slots in the page on disk; setting a slot twice does
+no harm, so the page need not record which updates it holds.  Only
+the update's own slots are restored, so on tables whose transactions
+lock records (see BufferPool#isRecordLocking) other transactions'
+slots on the page survive: each transaction changing such a page is
+logged with a SLOT_UPDATE of just the slots it changed.  Pages logged
+as whole images are restored whole.
 */
 
 public class LogFile {
@@ -82,16 +142,136 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int SLOT_UPDATE_RECORD = 7;
+    static final int SLOT_CLR_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** Default longest time, in microseconds, the log flusher waits for a
+        batch of commits to fill. */
+    public static final int DEFAULT_GROUP_COMMIT_DELAY = 1000;
+
+    /** Default most commits the log flusher writes with one force. */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH = 64;
+
+    // idle time after which the log flusher thread exits, in ms
+    private static final long FLUSHER_IDLE = 1000;
+
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
+    // the offset of the end of the log, including buffered records
     long currentOffset = -1;
     int pageSize;
     int totalRecords = 0; // for PatchTest
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // bytes logTruncate has dropped from the front of the log, so that
+    // offsets read before a truncation can be corrected
+    long truncated = 0;
+
+    private final LogBuffer buffer = new LogBuffer();
+    // appends to buffer
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    // the LSN up to which the log is known to be on disk
+    private final AtomicLong durable = new AtomicLong();
+
+    private volatile boolean groupCommit = Boolean.getBoolean("simpledb.GroupCommit");
+    private volatile int groupCommitDelay =
+        Integer.getInteger("simpledb.GroupCommitDelay", DEFAULT_GROUP_COMMIT_DELAY);
+    private volatile int groupCommitBatch =
+        Integer.getInteger("simpledb.GroupCommitBatch", DEFAULT_GROUP_COMMIT_BATCH);
+    // guarded by itself, as is flusher
+    private final LinkedList<Flush> pending = new LinkedList<Flush>();
+    private Thread flusher;
+    private final AtomicLong forces = new AtomicLong();
+
+    /** A COMMIT record queued for the log flusher, or with no transaction,
+        only a wait for the log to be forced.  The flusher completes it
+        once the log is on disk. */
+    private static class Flush extends FutureTask<Void> {
+        final TransactionId tid;
+
+        Flush(TransactionId tid) {
+            super(new Runnable() {
+                public void run() {
+                }
+            }, null);
+            this.tid = tid;
+        }
+
+        void complete(IOException error) {
+            if (error == null)
+                set(null);
+            else
+                setException(error);
+        }
+    }
+
+    /** An update to undo: its transaction, where its record starts, and
+        the before image or the delta it holds. */
+    private static class Undo {
+        final long tid;
+        final long offset;
+        final Page before;
+        final PageDelta delta;
+
+        Undo(long tid, long offset, Page before) {
+            this.tid = tid;
+            this.offset = offset;
+            this.before = before;
+            this.delta = null;
+        }
+
+        Undo(long tid, long offset, PageDelta delta) {
+            this.tid = tid;
+            this.offset = offset;
+            this.before = null;
+            this.delta = delta;
+        }
+    }
+
+    /** Creates pages of a type registered with registerPageType from the
+        id and data read back from the log. */
+    public interface PageType {
+        /** Return the page with the specified serialized id and data.
+            @see PageId#serialize
+            @see Page#getPageData
+        */
+        public Page newPage(int[] id, byte[] data) throws IOException;
+    }
+
+    private static final ConcurrentHashMap<Integer, PageType> pageTypes =
+        new ConcurrentHashMap<Integer, PageType>();
+    private static final ConcurrentHashMap<Class<?>, Integer> pageTypeIds =
+        new ConcurrentHashMap<Class<?>, Integer>();
+
+    static {
+        registerPageType(1, HeapPage.class, new PageType() {
+            public Page newPage(int[] id, byte[] data) throws IOException {
+                if (id.length != 2)
+                    throw new IOException("bad heap page id");
+                return new HeapPage(new HeapPageId(id[0], id[1]), data);
+            }
+        });
+    }
+
+    /** Register a page class, so that its pages are logged under the
+        specified id instead of under the names of their classes, and are
+        read back without reflection.  Ids are written to the log, so a
+        class must keep its id from one run to the next.
+
+        @param id The id, which must be positive
+        @param pageClass The class of the pages
+        @param type Creates the pages when they are read back
+    */
+    public static void registerPageType(int id, Class<? extends Page> pageClass,
+                                        PageType type) {
+        if (id <= 0)
+            throw new IllegalArgumentException("page type id " + id);
+        pageTypes.put(id, type);
+        pageTypeIds.put(pageClass, id);
+    }
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -130,75 +310,286 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            buffer.reset(raf.getChannel(), currentOffset);
         }
     }
 
+    /** Return the LSN of the next record to be appended */
+    private long nextLsn() {
+        return truncated + currentOffset;
+    }
+
+    /** Record that the log is on disk up to the given LSN */
+    private void durableTo(long lsn) {
+        long known;
+        while ((known = durable.get()) < lsn && !durable.compareAndSet(known, lsn))
+            ;
+    }
+
     public int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    /**
+     * Turns group commit on or off.  The default is the
+     * simpledb.GroupCommit system property, or off.
+     */
+    public void setGroupCommit(boolean on) {
+        groupCommit = on;
+    }
+
+    /** Return true if commits are forced in groups by the log flusher */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Sets how long the log flusher waits for a batch of commits to fill
+     * before it forces the log: 0 forces whatever is queued as soon as
+     * the last force ends.  The default is the simpledb.GroupCommitDelay
+     * system property, or DEFAULT_GROUP_COMMIT_DELAY.
+     *
+     * @param micros the longest wait, in microseconds
+     */
+    public void setGroupCommitDelay(int micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException(String.valueOf(micros));
+        groupCommitDelay = micros;
+    }
+
+    /** Return the longest time, in microseconds, the log flusher waits for a batch to fill */
+    public int getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Sets the number of queued commits at which the log flusher stops
+     * waiting and forces the log.  The default is the
+     * simpledb.GroupCommitBatch system property, or
+     * DEFAULT_GROUP_COMMIT_BATCH.
+     */
+    public void setGroupCommitBatch(int commits) {
+        if (commits < 1)
+            throw new IllegalArgumentException(String.valueOf(commits));
+        groupCommitBatch = commits;
+    }
+
+    /** Return the number of queued commits that makes the log flusher force the log */
+    public int getGroupCommitBatch() {
+        return groupCommitBatch;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this first, since rollback only works for live
+        // transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  In group commit mode the record
+        is written and forced by the log flusher, with others.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+        if (groupCommit) {
+            await(enqueue(tid));
+            return;
+        }
+        synchronized (this) {
+            preAppend();
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** Wait until every record written so far is on disk.  In group
+        commit mode the log is forced by the log flusher, once for many
+        callers; otherwise it is forced at once.
+    */
+    public void sync() throws IOException {
+        if (groupCommit)
+            await(enqueue(null));
+        else
+            force();
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Wait until the record with the given LSN, and every record
+        before it, is on disk, as sync() does, unless it already is.
+
+        @param lsn An LSN returned by logWrite, or 0 to return at once
+    */
+    public void sync(long lsn) throws IOException {
+        if (lsn != 0 && lsn >= durable.get())
+            sync();
+    }
+
+    /** Queue a COMMIT record for tid, or only a force if tid is null,
+        starting the log flusher if it is not running. */
+    private Flush enqueue(TransactionId tid) {
+        Flush flush = new Flush(tid);
+        synchronized (pending) {
+            pending.addLast(flush);
+            if (flusher == null) {
+                flusher = new Thread("simpledb-log-flusher") {
+                    public void run() {
+                        flushPending();
+                    }
+                };
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            pending.notify();
+        }
+        return flush;
+    }
+
+    private static void await(Flush flush) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    flush.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // the record may already be written, so keep waiting
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw (IOException) e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The log flusher's loop: takes batches off the queue and writes and
+        forces them, until the queue has been empty for FLUSHER_IDLE. */
+    private void flushPending() {
+        while (true) {
+            List<Flush> batch;
+            synchronized (pending) {
+                long idleEnd = System.currentTimeMillis() + FLUSHER_IDLE;
+                while (pending.isEmpty()) {
+                    long left = idleEnd - System.currentTimeMillis();
+                    if (left <= 0) {
+                        flusher = null;
+                        return;
+                    }
+                    waitOn(pending, left * 1000000);
+                }
+                // let the batch fill
+                long deadline = System.nanoTime() + groupCommitDelay * 1000L;
+                long left;
+                while (pending.size() < groupCommitBatch
+                       && (left = deadline - System.nanoTime()) > 0)
+                    waitOn(pending, left);
+                batch = new ArrayList<Flush>(pending);
+                pending.clear();
+            }
+
+            IOException error = null;
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                error = e;
+            }
+            for (Flush flush : batch)
+                flush.complete(error);
+        }
+    }
+
+    private static void waitOn(Object monitor, long nanos) {
+        try {
+            monitor.wait(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            // the flusher is not interrupted; waits are rechecked anyway
+        }
+    }
+
+    /** Append the COMMIT records of a batch, write the log buffer, then
+        force the log.  The log is forced outside this object's monitor, so
+        other records can be appended meanwhile. */
+    private void writeBatch(List<Flush> batch) throws IOException {
+        FileChannel channel;
+        long end;
+        synchronized (this) {
+            for (Flush flush : batch) {
+                if (flush.tid == null)
+                    continue;
+                preAppend();
+                out.writeInt(COMMIT_RECORD);
+                out.writeLong(flush.tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.end();
+            }
+            buffer.flush();
+            end = nextLsn();
+            // a transaction stays running until its COMMIT record is
+            // written, so a checkpoint meanwhile still lists it
+            for (Flush flush : batch) {
+                if (flush.tid != null)
+                    tidToFirstLogRecord.remove(flush.tid.getId());
+            }
+            channel = raf.getChannel();
+        }
+        try {
+            channel.force(true);
+            forces.incrementAndGet();
+        } catch (ClosedChannelException e) {
+            // logTruncate replaced the log file meanwhile; it copied the
+            // batch to the new one and forced it
+        }
+        durableTo(end);
+    }
+
+    /** Write an UPDATE record to the log for the specified tid and page
+        (with provided         before and after images.)  The record
+        reaches disk once the log is forced; see sync(long).
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return The LSN of the record
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        if (before instanceof HeapPage && after instanceof HeapPage)
+            return logWrite(tid, (HeapPage) before, (HeapPage) after, null);
         preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long lsn = nextLsn();
         /* update record conists of
 
            record type
@@ -207,34 +598,68 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a SLOT_UPDATE record for the specified transaction's
+        changes to a HeapPage, holding the slots among those specified
+        that differ between the before and after images.  See
+        logWrite(TransactionId, Page, Page).
+        @param slots The slots the transaction changed, or null if it is
+        the only one changing the page
+        @return The LSN of the record
+    */
+    public synchronized long logWrite(TransactionId tid, HeapPage before,
+                                      HeapPage after, Set<Integer> slots)
+        throws IOException {
+        preAppend();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long lsn = nextLsn();
+        /* slot update record consists of
+
+           record type
+           transaction id
+           the slots changed (see PageDelta.write)
+           start offset
+        */
+        out.writeInt(SLOT_UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        PageDelta.diff(before, after, slots).write(out);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
+        return lsn;
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
+        // page type id, or 0 and:
+        //   page class name
+        //   id class name
         // id class bytes
         // id class data
         // page class bytes
         // page class data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        Integer type = pageTypeIds.get(p.getClass());
+        if (type != null) {
+            raf.writeInt(type);
+        } else {
+            raf.writeInt(0);
+            raf.writeUTF(p.getClass().getName());
+            raf.writeUTF(pid.getClass().getName());
+        }
 
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
@@ -250,6 +675,19 @@ public class LogFile {
         PageId pid;
         Page newPage = null;
 
+        int type = raf.readInt();
+        if (type != 0) {
+            PageType pageType = pageTypes.get(type);
+            if (pageType == null)
+                throw new IOException("unknown page type " + type);
+            int id[] = new int[raf.readInt()];
+            for (int i = 0; i < id.length; i++)
+                id[i] = raf.readInt();
+            byte[] pageData = new byte[raf.readInt()];
+            raf.readFully(pageData);
+            return pageType.newPage(id, pageData);
+        }
+
         String pageClassName = raf.readUTF();
         String idClassName = raf.readUTF();
 
@@ -257,30 +695,34 @@ public class LogFile {
             Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
             int numIdArgs = raf.readInt();
             Object idArgs[] = new Object[numIdArgs];
+            Class<?> idArgTypes[] = new Class<?>[numIdArgs];
             for (int i = 0; i<numIdArgs;i++) {
                 idArgs[i] = new Integer(raf.readInt());
+                idArgTypes[i] = int.class;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            pid = (PageId)idClass.getDeclaredConstructor(idArgTypes).newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            raf.readFully(pageData); //read before image
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -307,51 +749,82 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.end();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
+    /** Return true if the specified transaction has begun and not yet
+        committed or aborted, so that its updates must be logged before
+        the pages they are on are written.
+        @param tid The transaction
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /** Write a CLR record for an undone update: a SLOT_CLR record holding
+        the inverse of the update's delta, or a CLR record holding its
+        before image.
+        @param undo The update undone
+        @param offset The offset of its record
+    */
+    private void logClr(Undo undo, long offset) throws IOException {
+        preAppend();
+        if (undo.delta != null) {
+            out.writeInt(SLOT_CLR_RECORD);
+            out.writeLong(undo.tid);
+            undo.delta.inverse().write(out);
+        } else {
+            out.writeInt(CLR_RECORD);
+            out.writeLong(undo.tid);
+            writePageData(out, undo.before);
+        }
+        out.writeLong(offset);
+        out.writeLong(currentOffset);
+        currentOffset = buffer.end();
+    }
+
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        // the buffer pool logs the pages it writes, so it must not be
+        // flushed holding this object's monitor
+        Database.getBufferPool().flushAllPages();
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = currentOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
             }
+            out.writeLong(currentOffset);
+            currentOffset = buffer.end();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            buffer.flush();
+            endCpOffset = currentOffset;
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            force();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
@@ -361,6 +834,7 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        buffer.flush();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -416,6 +890,17 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case CLR_RECORD:
+                    writePageData(logNew, readPageData(raf));
+                    logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    break;
+                case SLOT_UPDATE_RECORD:
+                    PageDelta.read(raf).write(logNew);
+                    break;
+                case SLOT_CLR_RECORD:
+                    PageDelta.read(raf).write(logNew);
+                    logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -450,6 +935,9 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        buffer.reset(raf.getChannel(), currentOffset);
+        truncated += minLogRecord - LONG_SIZE;
+        force();
         //print();
     }
 
@@ -463,22 +951,160 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
+        List<Undo> undos;
+        long shift;
+        synchronized(this) {
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+            undos = readUndos(Collections.singletonMap(tid.getId(), first));
+            shift = truncated;
+        }
+
+        // pages are restored without holding this object's monitor, so
+        // each CLR follows the write it records; were the two separated by
+        // a crash, recovery would just undo the update again
+        BufferPool bp = Database.getBufferPool();
+        // pages whose slots tid changed under record locks: the pool undoes
+        // all of tid's slots on such a page at its newest update, and its
+        // older updates only need their CLRs
+        Set<PageId> slotPages = new HashSet<PageId>();
+        for (Undo undo : undos) {
+            PageId pid = undo.delta == null ? undo.before.getId() : undo.delta.getId();
+            if (!slotPages.contains(pid) && !bp.restorePage(tid, restored(undo)))
+                slotPages.add(pid);
             synchronized(this) {
-                preAppend();
-                // some code goes here
+                // a checkpoint may have truncated the log meanwhile
+                logClr(undo, undo.offset - (truncated - shift));
+            }
+        }
+    }
+
+    /** Return the page an update is undone to: its before image, or its
+        page on disk with the delta undone. */
+    private static Page restored(Undo undo) throws IOException {
+        if (undo.delta == null)
+            return undo.before;
+        HeapPageId pid = undo.delta.getId();
+        return new HeapPage(pid, undo.delta.apply(diskImage(pid), true));
+    }
+
+    /** Return the data of a heap page as it is on disk, or that of an
+        empty page if the page is past the end of its file. */
+    private static byte[] diskImage(HeapPageId pid) {
+        DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+        if (file instanceof HeapFile && pid.pageNumber() >= ((HeapFile) file).numPages())
+            return HeapPage.createEmptyPageData();
+        return file.readPage(pid).getPageData();
+    }
+
+    /** Read the updates of the specified transactions that remain to be
+        undone, newest first, and leave the log positioned at its end.
+
+        @param firsts The offset of the first record of each transaction
+    */
+    private List<Undo> readUndos(Map<Long, Long> firsts) throws IOException {
+        List<Undo> undos = new ArrayList<Undo>();
+        if (firsts.isEmpty())
+            return undos;
+        buffer.flush();
+        // the offset of the oldest update each transaction has undone
+        HashMap<Long, Long> undone = new HashMap<Long, Long>();
+        long end = raf.length();
+        raf.seek(Collections.min(firsts.values()));
+        while (raf.getFilePointer() < end) {
+            long offset = raf.getFilePointer();
+            int type = raf.readInt();
+            long tid = raf.readLong();
+            // transaction ids restart with the database, so an earlier
+            // transaction may have had the same one
+            Long first = firsts.get(tid);
+            boolean wanted = first != null && offset >= first;
+            switch (type) {
+            case UPDATE_RECORD:
+                if (wanted)
+                    undos.add(new Undo(tid, offset, readPageData(raf)));
+                else
+                    skipPageData(raf);
+                skipPageData(raf);
+                break;
+            case SLOT_UPDATE_RECORD:
+                if (wanted)
+                    undos.add(new Undo(tid, offset, PageDelta.read(raf)));
+                else
+                    skipDelta(raf);
+                break;
+            case CLR_RECORD:
+            case SLOT_CLR_RECORD:
+                if (type == CLR_RECORD)
+                    skipPageData(raf);
+                else
+                    skipDelta(raf);
+                long undo = raf.readLong();
+                Long oldest = undone.get(tid);
+                if (wanted && (oldest == null || undo < oldest))
+                    undone.put(tid, undo);
+                break;
+            case CHECKPOINT_RECORD:
+                skip(raf, raf.readInt() * 2L * LONG_SIZE);
+                break;
             }
+            raf.readLong();
+        }
+        raf.seek(end);
+
+        Iterator<Undo> it = undos.iterator();
+        while (it.hasNext()) {
+            Undo undo = it.next();
+            Long oldest = undone.get(undo.tid);
+            if (oldest != null && undo.offset >= oldest)
+                it.remove();
         }
+        Collections.reverse(undos);
+        return undos;
+    }
+
+    /** Skip over page data written by writePageData. */
+    private void skipPageData(RandomAccessFile raf) throws IOException {
+        if (raf.readInt() == 0) {
+            raf.readUTF();
+            raf.readUTF();
+        }
+        skip(raf, (long) raf.readInt() * INT_SIZE);
+        skip(raf, raf.readInt());
+    }
+
+    /** Skip over a delta written by PageDelta.write. */
+    private void skipDelta(RandomAccessFile raf) throws IOException {
+        skip(raf, 2 * INT_SIZE);
+        long tupleSize = raf.readInt();
+        int numSlots = raf.readInt();
+        while (numSlots-- > 0) {
+            skip(raf, INT_SIZE);
+            int flags = raf.readByte();
+            skip(raf, tupleSize * (flags & 1) + tupleSize * ((flags & 2) >> 1));
+        }
+    }
+
+    /** Skip n bytes, throwing EOFException if fewer remain. */
+    private static void skip(RandomAccessFile raf, long n) throws IOException {
+        long to = raf.getFilePointer() + n;
+        if (n < 0 || to > raf.length())
+            throw new EOFException();
+        raf.seek(to);
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,14 +1114,161 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Must be called before any transaction starts, with every
+        table in the log in the catalog.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+            if (raf.length() < LONG_SIZE) {
+                raf.setLength(0);
+                raf.writeLong(NO_CHECKPOINT_ID);
+            }
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+
+            // analysis: find the transactions running at the crash,
+            // starting with those running at the last checkpoint
+            HashMap<Long, Long> losers = new HashMap<Long, Long>();
+            long redoFrom = LONG_SIZE;
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                redoFrom = cpLoc;
+                raf.seek(cpLoc);
+                if (raf.readInt() != CHECKPOINT_RECORD) {
+                    throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                }
+                raf.readLong();
+                int numXactions = raf.readInt();
+                while (numXactions-- > 0) {
+                    long tid = raf.readLong();
+                    losers.put(tid, raf.readLong());
+                }
+                raf.readLong();
+            }
+            long end = analyze(losers);
+            // drop a last record the crash left half written
+            raf.setLength(end);
+
+            // redo: repeat history from the checkpoint
+            Set<PageId> touched = new HashSet<PageId>();
+            raf.seek(redoFrom);
+            while (raf.getFilePointer() < end) {
+                int type = raf.readInt();
+                raf.readLong();
+                switch (type) {
+                case UPDATE_RECORD:
+                    skipPageData(raf);
+                    install(readPageData(raf), touched);
+                    break;
+                case CLR_RECORD:
+                    install(readPageData(raf), touched);
+                    raf.readLong();
+                    break;
+                case SLOT_UPDATE_RECORD:
+                case SLOT_CLR_RECORD:
+                    PageDelta delta = PageDelta.read(raf);
+                    byte[] data = delta.apply(diskImage(delta.getId()), false);
+                    install(new HeapPage(delta.getId(), data), touched);
+                    if (type == SLOT_CLR_RECORD)
+                        raf.readLong();
+                    break;
+                case CHECKPOINT_RECORD:
+                    skip(raf, raf.readInt() * 2L * LONG_SIZE);
+                    break;
+                }
+                raf.readLong();
+            }
+
+            // undo the losers.  Recovery can be repeated, so the CLRs
+            // need not reach the log before the pages are written
+            currentOffset = end;
+            buffer.reset(raf.getChannel(), end);
+            for (Undo undo : readUndos(losers)) {
+                Page page = restored(undo);
+                logClr(undo, undo.offset);
+                install(page, touched);
+            }
+            for (Long tid : losers.keySet()) {
+                preAppend();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid);
+                out.writeLong(currentOffset);
+                currentOffset = buffer.end();
+            }
+            force();
+            tidToFirstLogRecord.clear();
+
+            // the buffer pool may hold pages read before recovery
+            for (PageId pid : touched)
+                Database.getBufferPool().discardPage(pid);
+
+            // free-space maps are not logged; rebuild them from the recovered pages
+            Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+            while (tables.hasNext()) {
+                DbFile file = Database.getCatalog().getDbFile(tables.next());
+                if (file instanceof HeapFile)
+                    ((HeapFile) file).rebuildFreeSpaceMap();
+            }
+        }
+    }
+
+    /** Read the log from the current position to its end, starting and
+        ending the transactions in running as their records are read.
+        Returns the end of the last whole record.
+
+        @param running The first record of each running transaction
+    */
+    private long analyze(Map<Long, Long> running) throws IOException {
+        long end = raf.getFilePointer();
+        try {
+            while (end < raf.length()) {
+                int type = raf.readInt();
+                long tid = raf.readLong();
+                switch (type) {
+                case BEGIN_RECORD:
+                    running.put(tid, end);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    running.remove(tid);
+                    break;
+                case UPDATE_RECORD:
+                    skipPageData(raf);
+                    skipPageData(raf);
+                    break;
+                case CLR_RECORD:
+                    skipPageData(raf);
+                    raf.readLong();
+                    break;
+                case SLOT_UPDATE_RECORD:
+                    skipDelta(raf);
+                    break;
+                case SLOT_CLR_RECORD:
+                    skipDelta(raf);
+                    raf.readLong();
+                    break;
+                case CHECKPOINT_RECORD:
+                    skip(raf, raf.readInt() * 2L * LONG_SIZE);
+                    break;
+                default:
+                    return end;
+                }
+                if (raf.readLong() != end)
+                    return end;
+                end = raf.getFilePointer();
             }
-         }
+        } catch (EOFException e) {
+            // the last record was not wholly written
+        } catch (UTFDataFormatException e) {
+            // nor was it
+        }
+        return end;
+    }
+
+    /** Write a page image read from the log to its file. */
+    private void install(Page page, Set<PageId> touched) throws IOException {
+        Database.getCatalog().getDbFile(page.getId().getTableId()).writePage(page);
+        touched.add(page.getId());
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1276,12 @@ public class LogFile {
         // some code goes here
     }
 
+    /** Write the log buffer and force the log to disk */
     public  synchronized void force() throws IOException {
+        buffer.flush();
         raf.getChannel().force(true);
+        forces.incrementAndGet();
+        durableTo(nextLsn());
     }
 
 }
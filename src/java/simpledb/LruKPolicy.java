@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K eviction (O'Neil, O'Neil and Weikum, SIGMOD '93).  The victim is
+ * the clean page whose K-th most recent access is oldest; pages accessed
+ * fewer than K times are evicted first, least recently used first.  A
+ * page touched once by a scan is therefore evicted before any page that
+ * has been used repeatedly.
+ * <p>
+ * The access history of evicted pages is retained for a while (up to one
+ * cache's worth of page ids), so a page that is re-read soon after being
+ * evicted keeps its earlier accesses.
+ * <p>
+ * Victim selection is O(log n) in the number of resident pages.
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        // access times, most recent first
+        final long[] times;
+        int count;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void access(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            if (count < times.length)
+                count++;
+        }
+
+        // 0 (infinitely old) for pages with fewer than K accesses
+        long kthTime() {
+            return count < times.length ? 0 : times[times.length - 1];
+        }
+
+        long lastTime() {
+            return times[0];
+        }
+    }
+
+    private static final Comparator<History> BY_KTH_ACCESS = new Comparator<History>() {
+        public int compare(History a, History b) {
+            if (a.kthTime() != b.kthTime())
+                return a.kthTime() < b.kthTime() ? -1 : 1;
+            if (a.lastTime() != b.lastTime())
+                return a.lastTime() < b.lastTime() ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private final int k;
+    private final int retained;
+    private long clock = 0;
+
+    private final HashMap<PageId, History> resident = new HashMap<PageId, History>();
+    private final TreeSet<History> order = new TreeSet<History>(BY_KTH_ACCESS);
+    // insertion-ordered history of evicted pages, oldest first
+    private final LinkedHashMap<PageId, History> evicted = new LinkedHashMap<PageId, History>();
+
+    /**
+     * Creates an LRU-2 policy.
+     *
+     * @param numPages the capacity of the cache this policy serves
+     */
+    public LruKPolicy(int numPages) {
+        this(numPages, DEFAULT_K);
+    }
+
+    /**
+     * @param numPages the capacity of the cache this policy serves
+     * @param k the number of accesses remembered per page
+     */
+    public LruKPolicy(int numPages, int k) {
+        if (numPages < 1 || k < 1)
+            throw new IllegalArgumentException(numPages + ", " + k);
+        this.k = k;
+        this.retained = numPages;
+    }
+
+    public String getName() {
+        return "LRU-" + k;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null)
+            return;
+
+        // every access gets a distinct time, so histories never compare equal
+        order.remove(h);
+        h.access(++clock);
+        order.add(h);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (resident.containsKey(pid))
+            return;
+
+        History h = evicted.remove(pid);
+        if (h == null)
+            h = new History(pid, k);
+        h.access(++clock);
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null)
+            order.remove(h);
+    }
+
+    public synchronized PageId evict(PageCache cache) throws DbException {
+        Iterator<History> it = order.iterator();
+        while (it.hasNext()) {
+            History h = it.next();
+            if (cache.isEvictable(h.pid)) {
+                it.remove();
+                resident.remove(h.pid);
+                retain(h);
+                return h.pid;
+            }
+        }
+        throw new DbException("Could not evict page: all pages are dirty");
+    }
+
+    // caller must hold the lock on this
+    private void retain(History h) {
+        evicted.put(h.pid, h);
+        if (evicted.size() > retained) {
+            Iterator<Map.Entry<PageId, History>> it = evicted.entrySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
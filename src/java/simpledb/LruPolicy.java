@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used eviction: the victim is the clean page whose last
+ * access is oldest.  Simple, but a single large scan pushes every other
+ * page out of the cache.
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    // access-ordered: iteration starts at the least recently used page
+    private final LinkedHashMap<PageId, Boolean> pages =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    public String getName() {
+        return "LRU";
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        pages.get(pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        pages.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        pages.remove(pid);
+    }
+
+    public synchronized PageId evict(PageCache cache) throws DbException {
+        Iterator<PageId> it = pages.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (cache.isEvictable(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        throw new DbException("Could not evict page: all pages are dirty");
+    }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * MappedHeapFile is a HeapFile whose pages are read through read-only
+ * memory mappings of the file rather than with read calls.  A page miss
+ * then decodes the HeapPage straight out of the OS page cache, with no
+ * system call and no copy into a fresh page-sized byte array.  It is meant
+ * for large, read-mostly tables.
+ * <p>
+ * The file is mapped in chunks of a fixed number of pages (by default
+ * DEFAULT_CHUNK_PAGES), each mapped the first
+ * time one of its pages is read.  Writes still go through the file
+ * channel; the mappings are shared with the OS page cache, so they see
+ * the written data.  When the file grows (e.g. in insertTuple), the last,
+ * partial chunk is remapped the first time a page past its end is read.
+ * <p>
+ * The data file must not be truncated while it is mapped.
+ *
+ * @see HeapFile
+ */
+public class MappedHeapFile extends HeapFile {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of pages in each mapped chunk of the file. */
+    public static final int DEFAULT_CHUNK_PAGES = 256;
+
+    private final int chunkPages;
+    private final long chunkBytes;
+
+    // mapped chunks, indexed by chunk number; entries may be null
+    private transient ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        this(f, td, DEFAULT_CHUNK_PAGES);
+    }
+
+    /**
+     * Constructs a memory-mapped heap file backed by the specified file,
+     * mapped chunkPages pages at a time.
+     */
+    public MappedHeapFile(File f, TupleDesc td, int chunkPages) {
+        super(f, td);
+        if (chunkPages < 1)
+            throw new IllegalArgumentException(String.valueOf(chunkPages));
+        this.chunkPages = chunkPages;
+        this.chunkBytes = (long) chunkPages * BufferPool.PAGE_SIZE;
+    }
+
+    public Page readPage(PageId pid) {
+        try {
+            ByteBuffer chunk = chunkFor(pid.pageNumber());
+            int offset = (int) ((long) pid.pageNumber() * BufferPool.PAGE_SIZE % chunkBytes);
+
+            // a private view of the page; the chunk's position is never moved
+            ByteBuffer page = chunk.duplicate();
+            page.position(offset);
+            page.limit(offset + BufferPool.PAGE_SIZE);
+            return new HeapPage(
+                new HeapPageId(pid.getTableId(), pid.pageNumber()), page.slice());
+        } catch(IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the chunk that contains page pgNo, mapping it (or remapping
+     * it, if the file has grown past the end of its mapping) if necessary.
+     *
+     * @throws IllegalArgumentException if the page is past the end of the file
+     */
+    private synchronized MappedByteBuffer chunkFor(int pgNo) throws IOException {
+        int chunkNo = pgNo / chunkPages;
+        long chunkStart = chunkNo * chunkBytes;
+        long pageEnd = (long) (pgNo + 1) * BufferPool.PAGE_SIZE;
+
+        MappedByteBuffer chunk = chunkNo < chunks.size() ? chunks.get(chunkNo) : null;
+        if (chunk != null && chunkStart + chunk.capacity() >= pageEnd)
+            return chunk;
+
+        FileChannel ch = channel();
+        long size = ch.size();
+        if (pageEnd > size)
+            throw new IllegalArgumentException("page " + pgNo + " is past the end of the file");
+
+        chunk = ch.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+                Math.min(chunkBytes, size - chunkStart));
+        while (chunks.size() <= chunkNo)
+            chunks.add(null);
+        chunks.set(chunkNo, chunk);
+        return chunk;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        chunks = new ArrayList<MappedByteBuffer>();
+    }
+}
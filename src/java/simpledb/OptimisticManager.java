@@ -0,0 +1,163 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * OptimisticManager keeps the state of transactions that run under
+ * optimistic concurrency control, for the BufferPool's optimistic mode.
+ * <p>
+ * An optimistic transaction takes no locks.  The manager records the
+ * pages it reads (its read set), and holds private copies of the pages it
+ * writes, so its changes are invisible to others until it commits.  At
+ * commit it is validated backwards: it fails if a transaction that
+ * committed after it started wrote a page it read.  Otherwise its copies
+ * are installed, and its write set is kept for validating the
+ * transactions still running.  Validation and installation must be done
+ * one transaction at a time; the BufferPool does both holding this
+ * manager's monitor.
+ * <p>
+ * A transaction starts when it first reads or writes a page.  A page it
+ * writes is in its read set too, since whole pages are installed.
+ */
+public class OptimisticManager {
+
+    /** The read set and buffered writes of a running transaction. */
+    private static class TxnState {
+        // the number of commits before the transaction started
+        final long start;
+        final HashSet<PageId> reads = new HashSet<PageId>();
+        final LinkedHashMap<PageId, Page> writes = new LinkedHashMap<PageId, Page>();
+
+        TxnState(long start) {
+            this.start = start;
+        }
+    }
+
+    /** The pages written by a committed transaction. */
+    private static class Commit {
+        final long number;
+        final Set<PageId> pages;
+
+        Commit(long number, Set<PageId> pages) {
+            this.number = number;
+            this.pages = pages;
+        }
+    }
+
+    private final ConcurrentHashMap<TransactionId, TxnState> running =
+        new ConcurrentHashMap<TransactionId, TxnState>();
+    private volatile long commits;
+    // guarded by this; oldest first, trimmed when no running transaction
+    // started before them
+    private final LinkedList<Commit> recent = new LinkedList<Commit>();
+    private long validations, failures;
+
+    private TxnState stateOf(TransactionId tid) {
+        TxnState state = running.get(tid);
+        if (state == null) {
+            state = new TxnState(commits);
+            running.put(tid, state);
+        }
+        return state;
+    }
+
+    /**
+     * Records that tid reads pid, and returns tid's private copy of the
+     * page if it has written it, or null.
+     */
+    public Page read(TransactionId tid, PageId pid) {
+        TxnState state = stateOf(tid);
+        state.reads.add(pid);
+        return state.writes.get(pid);
+    }
+
+    /**
+     * Records a private copy of a page that tid reads and will write.
+     * Until tid commits, tid sees the copy and others do not.
+     */
+    public void write(TransactionId tid, Page copy) {
+        TxnState state = stateOf(tid);
+        state.reads.add(copy.getId());
+        state.writes.put(copy.getId(), copy);
+    }
+
+    /** Returns true if tid has written pages it has not yet committed. */
+    public boolean hasWrites(TransactionId tid) {
+        TxnState state = running.get(tid);
+        return state != null && !state.writes.isEmpty();
+    }
+
+    /**
+     * Validates tid and, if it passes, returns its private copies of the
+     * pages it changed, which the caller must install and then call
+     * {@link #installed}, before the next validation.  The copies are
+     * forgotten.
+     *
+     * @throws TransactionAbortedException if a transaction that committed
+     *   after tid started wrote a page tid read; tid must then abort
+     */
+    public synchronized List<Page> validate(TransactionId tid)
+        throws TransactionAbortedException {
+        TxnState state = running.get(tid);
+        if (state == null)
+            return Collections.emptyList();
+        validations++;
+        for (Commit c : recent) {
+            if (c.number <= state.start)
+                continue;
+            for (PageId pid : c.pages) {
+                if (state.reads.contains(pid)) {
+                    failures++;
+                    throw new TransactionAbortedException();
+                }
+            }
+        }
+
+        List<Page> changed = new ArrayList<Page>();
+        Set<PageId> pages = new HashSet<PageId>();
+        for (Page page : state.writes.values()) {
+            if (page.isDirty() != null) {
+                changed.add(page);
+                pages.add(page.getId());
+            }
+        }
+        state.writes.clear();
+        if (!pages.isEmpty())
+            recent.addLast(new Commit(commits + 1, pages));
+        return changed;
+    }
+
+    /**
+     * Counts the commit of pages just installed.  Transactions starting
+     * after this read the installed pages; those that started before may
+     * have read the old ones, and are validated against the commit.
+     */
+    public synchronized void installed(List<Page> changed) {
+        if (!changed.isEmpty())
+            commits++;
+    }
+
+    /** Forgets tid, and the commits only it could still conflict with. */
+    public void end(TransactionId tid) {
+        if (running.remove(tid) == null)
+            return;
+        synchronized (this) {
+            long oldest = commits;
+            for (TxnState state : running.values())
+                oldest = Math.min(oldest, state.start);
+            while (!recent.isEmpty() && recent.getFirst().number <= oldest)
+                recent.removeFirst();
+        }
+    }
+
+    /** Return the number of transactions validated */
+    public synchronized long getValidationCount() {
+        return validations;
+    }
+
+    /** Return the number of transactions that failed validation */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+}
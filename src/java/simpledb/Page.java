@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.concurrent.locks.ReadWriteLock;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -7,7 +9,7 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -56,4 +58,26 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Returns the LSN of the last log record of this page, or 0 if it has
+     * not been logged since it was read.  The log must be on disk up to
+     * this LSN before the page is written.
+     */
+    public long getLSN();
+
+    /**
+     * Sets the LSN of the last log record of this page.
+     */
+    public void setLSN(long lsn);
+
+    /**
+     * Returns the page's latch, which keeps the page physically consistent
+     * while threads read or change it.  Unlike the locks transactions take
+     * for isolation, a latch is held only for the duration of one
+     * operation on the page, such as changing a slot or writing the page
+     * to disk, and never while waiting for a lock.  A latched page is not
+     * evicted.
+     */
+    public ReadWriteLock latch();
 }
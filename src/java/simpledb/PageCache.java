@@ -0,0 +1,260 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * PageCache is the page table behind the BufferPool.  Pages are looked up
+ * in a ConcurrentHashMap (which is internally sharded, so concurrent
+ * lookups of different pages do not contend), and an EvictionPolicy picks
+ * the victim when the cache is full.
+ * <p>
+ * A hit takes no cache-wide lock; it only notifies the policy.  Under
+ * CLOCK, the default, each resident page keeps a reference to its clock
+ * frame, and a hit just sets the frame's reference bit, so it costs one
+ * table lookup and does not call the policy at all.  Inserting and
+ * evicting are serialized on the cache itself.
+ * <p>
+ * Dirty pages are never evicted (NO STEAL); if every resident page is
+ * dirty, inserting a new page fails with a DbException.
+ * <p>
+ * The cache counts hits, misses and evictions so that policies can be
+ * compared on a workload.
+ *
+ * @see BufferPool
+ * @see EvictionPolicy
+ */
+public class PageCache {
+
+    /** A resident page, and its frame if the policy is CLOCK. */
+    private static class Entry {
+        volatile Page page;
+        final ClockPolicy.Frame frame;
+
+        Entry(Page page, ClockPolicy.Frame frame) {
+            this.page = page;
+            this.frame = frame;
+        }
+    }
+
+    private final int maxPages;
+    private final ConcurrentHashMap<PageId, Entry> table;
+    private final EvictionPolicy policy;
+    // policy, if it is CLOCK
+    private final ClockPolicy clock;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates an empty cache that holds at most numPages pages.
+     *
+     * @param numPages maximum number of resident pages
+     * @param policy the policy used to choose eviction victims
+     */
+    public PageCache(int numPages, EvictionPolicy policy) {
+        if (numPages < 1)
+            throw new IllegalArgumentException(String.valueOf(numPages));
+
+        this.maxPages = numPages;
+        this.table = new ConcurrentHashMap<PageId, Entry>(numPages);
+        this.policy = policy;
+        this.clock = policy instanceof ClockPolicy ? (ClockPolicy) policy : null;
+    }
+
+    /**
+     * Looks up a page on behalf of a reader, counting the lookup as a hit
+     * or a miss.
+     *
+     * @return the resident page with the given id, or null if it is not in
+     *   the cache
+     */
+    public Page get(PageId pid) {
+        Entry entry = table.get(pid);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        accessed(pid, entry);
+        return entry.page;
+    }
+
+    /**
+     * Looks up a page without counting it as an access, for internal use
+     * such as flushing.
+     *
+     * @return the resident page with the given id, or null
+     */
+    public Page peek(PageId pid) {
+        Entry entry = table.get(pid);
+        return entry == null ? null : entry.page;
+    }
+
+    /**
+     * Inserts page unless a page with the same id is already resident,
+     * evicting a page if the cache is full.
+     *
+     * @return the page that is resident after the call: the existing page
+     *   if there was one, or page otherwise
+     * @throws DbException if the cache is full and every page is dirty
+     */
+    public Page putIfAbsent(PageId pid, Page page) throws DbException {
+        synchronized (this) {
+            Entry resident = table.get(pid);
+            if (resident != null) {
+                accessed(pid, resident);
+                return resident.page;
+            }
+            insert(pid, page);
+            return page;
+        }
+    }
+
+    /**
+     * Inserts page, replacing any resident page with the same id and
+     * evicting a page if the cache is full.
+     *
+     * @throws DbException if the cache is full and every page is dirty
+     */
+    public void put(PageId pid, Page page) throws DbException {
+        synchronized (this) {
+            Entry resident = table.get(pid);
+            if (resident != null) {
+                resident.page = page;
+                accessed(pid, resident);
+                return;
+            }
+            insert(pid, page);
+        }
+    }
+
+    /** Removes the page with the given id, if it is resident. */
+    public synchronized void remove(PageId pid) {
+        if (table.remove(pid) != null)
+            policy.pageRemoved(pid);
+    }
+
+    /**
+     * Evicts one page chosen by the eviction policy.
+     *
+     * @return the evicted page
+     * @throws DbException if every resident page is dirty
+     */
+    public synchronized Page evict() throws DbException {
+        PageId victim = policy.evict(this);
+        evictions.incrementAndGet();
+        Entry entry = table.remove(victim);
+        return entry == null ? null : entry.page;
+    }
+
+    /**
+     * Returns true if pid is resident and clean, and so may be evicted.
+     * A page whose latch is held is being changed or written, and is not
+     * evictable.  Called by eviction policies while choosing a victim.
+     */
+    public boolean isEvictable(PageId pid) {
+        Entry entry = table.get(pid);
+        if (entry == null)
+            return false;
+        Page page = entry.page;
+        if (page.isDirty() != null)
+            return false;
+        Lock latch = page.latch().writeLock();
+        if (!latch.tryLock())
+            return false;
+        latch.unlock();
+        return true;
+    }
+
+    /** Returns the number of resident pages. */
+    public int size() {
+        return table.size();
+    }
+
+    /** Returns the maximum number of resident pages. */
+    public int capacity() {
+        return maxPages;
+    }
+
+    /** Returns the policy used to choose eviction victims. */
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /** Returns the number of lookups that found their page resident. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of lookups that did not find their page. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of pages evicted to make room for others. */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** Returns hits / (hits + misses), or 0 if there have been no lookups. */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /** Resets the hit, miss and eviction counters to zero. */
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * Returns an iterator over the resident pages.  The iterator is weakly
+     * consistent: it never throws ConcurrentModificationException, and may
+     * or may not reflect pages inserted or removed while it is in use.
+     */
+    public Iterator<Page> iterator() {
+        final Iterator<Entry> entries = table.values().iterator();
+        return new Iterator<Page>() {
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Page next() {
+                return entries.next().page;
+            }
+
+            public void remove() {
+                entries.remove();
+            }
+        };
+    }
+
+    public String toString() {
+        return String.format("%s: %d hits, %d misses (%.1f%% hit ratio), %d evictions",
+                policy.getName(), getHits(), getMisses(), 100 * getHitRatio(), getEvictions());
+    }
+
+    private void accessed(PageId pid, Entry entry) {
+        if (entry.frame != null)
+            entry.frame.referenced = true;
+        else
+            policy.pageAccessed(pid);
+    }
+
+    // caller must hold the lock on this
+    private void insert(PageId pid, Page page) throws DbException {
+        if (table.size() >= maxPages)
+            evict();
+
+        policy.pageAdded(pid);
+        table.put(pid, new Entry(page, clock == null ? null : clock.frameOf(pid)));
+    }
+}
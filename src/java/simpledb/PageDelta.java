@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * PageDelta is a slot-level change to a HeapPage, which the LogFile logs
+ * in place of the page's whole before and after images.  For each slot
+ * the change touched, it holds the slot's tuple bytes before and after
+ * the change, or none if the slot was empty.  A single-tuple insert thus
+ * logs one slot rather than two pages.
+ * <p>
+ * A delta is applied to a page's bytes by setting each of its slots,
+ * header bit and tuple bytes, to the after (redo) or before (undo)
+ * contents.  Setting a slot is idempotent, so a delta can be redone or
+ * undone any number of times, as recovery requires.  The page layout
+ * follows from the tuple size alone (see HeapPage), so applying a delta
+ * needs no catalog lookup.
+ */
+public class PageDelta {
+    private final HeapPageId pid;
+    private final int tupleSize;
+    private final int[] slots;
+    // the tuple bytes of each slot, or null where it was empty
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(HeapPageId pid, int tupleSize, int[] slots,
+                      byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.tupleSize = tupleSize;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Returns the slots that differ between two images of the same page.
+     */
+    public static PageDelta diff(HeapPage from, HeapPage to) {
+        return diff(from, to, null);
+    }
+
+    /**
+     * Returns the slots among the given ones that differ between two
+     * images of the same page.  Several transactions can change a page
+     * under record locks, and each one's update is logged with only the
+     * slots it changed.
+     *
+     * @param wanted the slots to compare, or null for all of them
+     */
+    public static PageDelta diff(HeapPage from, HeapPage to, Set<Integer> wanted) {
+        HeapPageId pid = to.getId();
+        int size = Database.getCatalog().getTupleDesc(pid.getTableId()).getSize();
+        byte[] b = from.getPageData();
+        byte[] a = to.getPageData();
+        int numSlots = numSlots(size);
+        int header = headerSize(numSlots);
+
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < numSlots; i++) {
+            if (wanted != null && !wanted.contains(i))
+                continue;
+            boolean used = isUsed(a, i);
+            if (used != isUsed(b, i) || (used && !sameTuple(a, b, header + i * size, size)))
+                changed.add(i);
+        }
+        int n = changed.size();
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            int i = changed.get(k);
+            slots[k] = i;
+            before[k] = tupleAt(b, i, header, size);
+            after[k] = tupleAt(a, i, header, size);
+        }
+        return new PageDelta(pid, size, slots, before, after);
+    }
+
+    private static int numSlots(int tupleSize) {
+        return (BufferPool.PAGE_SIZE * 8) / (tupleSize * 8 + 1);
+    }
+
+    private static int headerSize(int numSlots) {
+        return (numSlots + 7) / 8;
+    }
+
+    private static boolean isUsed(byte[] page, int slot) {
+        return (page[slot / 8] & (1 << (slot % 8))) != 0;
+    }
+
+    private static boolean sameTuple(byte[] a, byte[] b, int offset, int size) {
+        for (int j = offset; j < offset + size; j++) {
+            if (a[j] != b[j])
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] tupleAt(byte[] page, int slot, int header, int size) {
+        if (!isUsed(page, slot))
+            return null;
+        byte[] tuple = new byte[size];
+        System.arraycopy(page, header + slot * size, tuple, 0, size);
+        return tuple;
+    }
+
+    /** Returns the id of the page changed. */
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** Returns the number of slots changed. */
+    public int numSlots() {
+        return slots.length;
+    }
+
+    /** Returns the delta that undoes this one. */
+    public PageDelta inverse() {
+        return new PageDelta(pid, tupleSize, slots, after, before);
+    }
+
+    /**
+     * Sets the changed slots of the page data to their contents after the
+     * change, or before it if undo is true.
+     *
+     * @param data the page's bytes, changed in place
+     * @return data
+     */
+    public byte[] apply(byte[] data, boolean undo) {
+        byte[][] contents = undo ? before : after;
+        int header = headerSize(numSlots(tupleSize));
+        for (int k = 0; k < slots.length; k++) {
+            int i = slots[k];
+            int offset = header + i * tupleSize;
+            if (contents[k] == null) {
+                data[i / 8] &= ~(1 << (i % 8));
+                for (int j = offset; j < offset + tupleSize; j++)
+                    data[j] = 0;
+            } else {
+                data[i / 8] |= 1 << (i % 8);
+                System.arraycopy(contents[k], 0, data, offset, tupleSize);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Writes the delta: the page id, the tuple size and the number of
+     * slots, then for each slot its number, a byte of flags saying which
+     * of its before and after contents are present, and those contents.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.pageNumber());
+        out.writeInt(tupleSize);
+        out.writeInt(slots.length);
+        for (int k = 0; k < slots.length; k++) {
+            out.writeInt(slots[k]);
+            out.writeByte((before[k] != null ? 1 : 0) | (after[k] != null ? 2 : 0));
+            if (before[k] != null)
+                out.write(before[k]);
+            if (after[k] != null)
+                out.write(after[k]);
+        }
+    }
+
+    /**
+     * Reads a delta written by {@link #write}.
+     *
+     * @throws IOException if what is read is not a delta
+     */
+    public static PageDelta read(DataInput in) throws IOException {
+        HeapPageId pid = new HeapPageId(in.readInt(), in.readInt());
+        int size = in.readInt();
+        if (size < 1 || size > BufferPool.PAGE_SIZE)
+            throw new IOException("bad tuple size " + size);
+        int n = in.readInt();
+        if (n < 0 || n > numSlots(size))
+            throw new IOException("bad slot count " + n);
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            slots[k] = in.readInt();
+            if (slots[k] < 0 || slots[k] >= numSlots(size))
+                throw new IOException("bad slot " + slots[k]);
+            int flags = in.readByte();
+            if ((flags & 1) != 0) {
+                before[k] = new byte[size];
+                in.readFully(before[k]);
+            }
+            if ((flags & 2) != 0) {
+                after[k] = new byte[size];
+                in.readFully(after[k]);
+            }
+        }
+        return new PageDelta(pid, size, slots, before, after);
+    }
+}
@@ -675,6 +675,14 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.equalsIgnoreCase("locks;")) {
+                        LockManager lm = Database.getBufferPool().getLockManager();
+                        System.out.print(lm.describeStats(10));
+                        System.out.print(lm.describeWaits());
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
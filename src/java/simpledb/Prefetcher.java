@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads pages on a small pool of background threads, so that
+ * the I/O for the pages a scan will need next overlaps with the scan's
+ * processing of the current one.  It is owned by the BufferPool and driven
+ * by {@link ReadAhead}.
+ * <p>
+ * Prefetched pages are kept in a staging area, not in the buffer pool,
+ * until BufferPool.getPage asks for them (after taking the page's lock).
+ * Pages are read without locks.  The disk may hold uncommitted data, as
+ * checkpoints and flushes of record-locked pages write it, so a staged
+ * page is only ever what getPage would have read from disk itself: the
+ * BufferPool invalidates a staged page whenever the page is dirtied,
+ * written or discarded, and LogFile.rollback writes pages through
+ * BufferPool.restorePage, which does the same.  A read that raced with a
+ * write is thrown away.
+ * <p>
+ * Idle threads exit after a second, so an unused Prefetcher holds no
+ * threads.
+ */
+public class Prefetcher {
+
+    /** Default number of background I/O threads. */
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<PageId, Future<Page>> staged =
+        new ConcurrentHashMap<PageId, Future<Page>>();
+
+    // moving average of the time to read a page, in nanoseconds
+    private volatile long readNanos = 0;
+
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    /**
+     * @param threads the maximum number of pages read at once
+     */
+    public Prefetcher(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException(String.valueOf(threads));
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetch-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts reading pid in the background, unless it is already staged.
+     */
+    public void prefetch(final PageId pid) {
+        if (staged.containsKey(pid))
+            return;
+
+        FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+            public Page call() {
+                long start = System.nanoTime();
+                Page page = Database.getCatalog().getDbFile(pid.getTableId()).readPage(pid);
+                recordRead(System.nanoTime() - start);
+                return page;
+            }
+        });
+        if (staged.putIfAbsent(pid, task) == null) {
+            issued.incrementAndGet();
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Removes the staged copy of pid and returns it, waiting for its read
+     * to finish if it is still in flight.  Returns null if pid is not
+     * staged or could not be read.
+     */
+    public Page take(PageId pid) {
+        Future<Page> f = staged.remove(pid);
+        if (f == null)
+            return null;
+
+        if (!f.isDone())
+            waits.incrementAndGet();
+        try {
+            Page page = f.get();
+            hits.incrementAndGet();
+            return page;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Drops the staged copy of pid, if any, because the page has changed
+     * or is no longer wanted.
+     */
+    public void invalidate(PageId pid) {
+        Future<Page> f = staged.remove(pid);
+        if (f != null)
+            f.cancel(false);
+    }
+
+    /** Returns true if pid is staged or being read. */
+    public boolean isStaged(PageId pid) {
+        return staged.containsKey(pid);
+    }
+
+    /** Returns the number of pages staged or being read. */
+    public int numStaged() {
+        return staged.size();
+    }
+
+    /** Returns the average time to read a page, in nanoseconds, or 0 if unknown. */
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    /** Returns the number of prefetches started. */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /** Returns the number of getPage misses served from a prefetched page. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of those hits that had to wait for the read. */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    private void recordRead(long nanos) {
+        // exponential moving average, weight 1/8; lost updates do not matter
+        long avg = readNanos;
+        readNanos = avg == 0 ? nanos : avg + (nanos - avg) / 8;
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+/**
+ * ReadAhead drives the BufferPool's {@link Prefetcher} for one sequential
+ * scan of a HeapFile.  The scan calls {@link #advance} before it reads each
+ * page; while the pages arrive in order, ReadAhead keeps the next window
+ * pages being read in the background.  A jump to any other page restarts
+ * the window at its minimum.
+ * <p>
+ * The window adapts to the scan.  It is sized to cover the pages the scan
+ * will consume during two page reads: the average read time measured by
+ * the Prefetcher divided by the average time the scan spends per page,
+ * doubled.  A scan that does a lot of work per page keeps few pages
+ * ahead; a fast scan over a slow disk keeps up to the maximum.
+ * <p>
+ * A ReadAhead is used by one iterator at a time and is not thread-safe.
+ *
+ * @see BufferPool#newReadAhead
+ */
+public class ReadAhead {
+
+    /** Smallest number of pages kept ahead of a sequential scan. */
+    public static final int MIN_WINDOW = 2;
+
+    private final BufferPool pool;
+    private final Prefetcher prefetcher;
+    private final int tableId;
+    private final int numPages;
+    private final int maxWindow;
+
+    private int window = MIN_WINDOW;
+    // the page most recently advanced to, and the last page prefetched
+    private int last = -1;
+    private int issuedUpTo = -1;
+    // when the scan advanced to last, and its moving average time per page
+    private long lastTime;
+    private long pageNanos = 0;
+
+    /**
+     * @param pool the buffer pool the scan reads through
+     * @param tableId the table being scanned
+     * @param numPages the number of pages in the table
+     * @param maxWindow the largest number of pages to keep ahead
+     */
+    public ReadAhead(BufferPool pool, int tableId, int numPages, int maxWindow) {
+        if (maxWindow < MIN_WINDOW)
+            throw new IllegalArgumentException(String.valueOf(maxWindow));
+        this.pool = pool;
+        this.prefetcher = pool.getPrefetcher();
+        this.tableId = tableId;
+        this.numPages = numPages;
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Tells the read-ahead that the scan is about to read page pgNo, and
+     * starts background reads of the pages after it.  Repeated calls for
+     * the same page are ignored.
+     */
+    public void advance(int pgNo) {
+        if (pgNo == last)
+            return;
+
+        long now = System.nanoTime();
+        if (last >= 0 && pgNo == last + 1) {
+            long nanos = now - lastTime;
+            pageNanos = pageNanos == 0 ? nanos : pageNanos + (nanos - pageNanos) / 8;
+            adapt();
+        } else if (last >= 0) {
+            // not sequential: drop what was read ahead and start over
+            cancel();
+            window = MIN_WINDOW;
+            pageNanos = 0;
+        }
+        last = pgNo;
+        lastTime = now;
+
+        int target = Math.min(numPages - 1, pgNo + window);
+        for (int p = Math.max(issuedUpTo, pgNo) + 1; p <= target; p++)
+            pool.prefetch(new HeapPageId(tableId, p));
+        issuedUpTo = Math.max(issuedUpTo, target);
+    }
+
+    /**
+     * Returns the number of pages currently kept ahead of the scan.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Drops any pages read ahead that the scan has not used.
+     */
+    public void close() {
+        cancel();
+        last = -1;
+    }
+
+    private void adapt() {
+        long readNanos = prefetcher.getReadNanos();
+        if (readNanos == 0 || pageNanos == 0)
+            return;
+        long pages = 2 * readNanos / pageNanos + 1;
+        window = (int) Math.max(MIN_WINDOW, Math.min(maxWindow, pages));
+    }
+
+    private void cancel() {
+        for (int p = last + 1; p <= issuedUpTo; p++)
+            prefetcher.invalidate(new HeapPageId(tableId, p));
+        issuedUpTo = last;
+    }
+}
@@ -48,14 +48,10 @@ public class RecordId implements Serializable {
      */
     @Override
     public boolean equals(Object o) {
-        boolean equals = false;
         if (!(o instanceof RecordId))
-            equals = false;
-        if( (((RecordId) o).getPageId().hashCode() == this.page.hashCode()) && (((RecordId) o).tupleno() == this.slot)) {
-            equals = true;
-        }
-
-        return equals;
+            return false;
+        RecordId other = (RecordId) o;
+        return other.slot == this.slot && other.page.equals(this.page);
     }
 
     /**
@@ -66,11 +62,11 @@ public class RecordId implements Serializable {
      */
     @Override
     public int hashCode() {
-        String page = Integer.toString(this.page.hashCode());
-        String slot = Integer.toString(this.slot);
-        String hashCode = page + slot;
-        return Integer.parseInt(hashCode);
+        return 31 * this.page.hashCode() + this.slot;
+    }
 
+    public String toString() {
+        return "slot " + slot + " of " + page;
     }
 
 }
@@ -29,8 +29,16 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction.  In the BufferPool's optimistic mode the
+     * transaction is validated first.
+     *
+     * @throws TransactionAbortedException if validation fails; the
+     *   transaction must then be aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started)
+            Database.getBufferPool().installWrites(tid);
         transactionComplete(false);
     }
 
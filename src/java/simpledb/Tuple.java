@@ -101,7 +101,7 @@ public class Tuple implements Serializable {
         int i;
 
         for (i = 0; i < this.description.numFields() - 1; i++) {
-            Field readField= this.tuple[i];
+            Field readField= getField(i);
             if (readField != null) {
                 string = string + readField.toString() + "\t";
             }
@@ -109,7 +109,7 @@ public class Tuple implements Serializable {
                 string = string + "null" + "\t";
         }
 
-        Field readField= this.tuple[i];
+        Field readField= getField(i);
         if (readField != null) {
             string = string + readField.toString() + "\n";
         }
@@ -124,6 +124,9 @@ public class Tuple implements Serializable {
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields() {
-        return Arrays.asList(this.tuple).iterator();
+        Field[] all = new Field[this.tuple.length];
+        for (int i = 0; i < all.length; i++)
+            all[i] = getField(i);
+        return Arrays.asList(all).iterator();
     }
 }
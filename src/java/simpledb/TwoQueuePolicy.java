@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 2Q eviction (Johnson and Shasha, VLDB '94).  Pages read for the first
+ * time enter a FIFO queue, A1in.  When they are evicted from A1in their
+ * ids are remembered in a ghost queue, A1out; only a page that is read
+ * again while it is still in A1out is promoted into the main LRU queue,
+ * Am.  A sequential scan therefore only cycles through A1in and cannot
+ * push the hot pages in Am out of the cache.
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    // insertion-ordered FIFO of resident pages seen once
+    private final LinkedHashMap<PageId, Boolean> a1in = new LinkedHashMap<PageId, Boolean>();
+    // insertion-ordered FIFO of ids recently evicted from a1in
+    private final LinkedHashMap<PageId, Boolean> a1out = new LinkedHashMap<PageId, Boolean>();
+    // access-ordered LRU of resident hot pages
+    private final LinkedHashMap<PageId, Boolean> am =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * Creates a 2Q policy with the tuning recommended by the paper: A1in
+     * holds a quarter of the cache and A1out remembers half a cache's worth
+     * of page ids.
+     *
+     * @param numPages the capacity of the cache this policy serves
+     */
+    public TwoQueuePolicy(int numPages) {
+        this(numPages, Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param numPages the capacity of the cache this policy serves
+     * @param kin the target number of resident pages in A1in
+     * @param kout the maximum number of ghost entries in A1out
+     */
+    public TwoQueuePolicy(int numPages, int kin, int kout) {
+        if (numPages < 1 || kin < 1 || kout < 0)
+            throw new IllegalArgumentException(numPages + ", " + kin + ", " + kout);
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public String getName() {
+        return "2Q";
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored: they are most likely
+        // correlated references from the access that read the page in
+        am.get(pid);
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (a1out.remove(pid) != null)
+            am.put(pid, Boolean.TRUE);
+        else
+            a1in.put(pid, Boolean.TRUE);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public synchronized PageId evict(PageCache cache) throws DbException {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = removeFirstEvictable(a1in, cache);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+        }
+
+        victim = removeFirstEvictable(am, cache);
+        if (victim != null)
+            return victim;
+
+        victim = removeFirstEvictable(a1in, cache);
+        if (victim != null) {
+            remember(victim);
+            return victim;
+        }
+        throw new DbException("Could not evict page: all pages are dirty");
+    }
+
+    // caller must hold the lock on this
+    private void remember(PageId pid) {
+        a1out.put(pid, Boolean.TRUE);
+        if (a1out.size() > kout) {
+            Iterator<PageId> it = a1out.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    static PageId removeFirstEvictable(LinkedHashMap<PageId, Boolean> queue, PageCache cache) {
+        Iterator<PageId> it = queue.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (cache.isEvictable(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
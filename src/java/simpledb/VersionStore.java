@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VersionStore keeps the old committed versions of pages that snapshot
+ * readers may still need, for the BufferPool's snapshot reads.
+ * <p>
+ * Commits are numbered by a clock.  A transaction's snapshot is the clock
+ * value when it first asks for one, and it sees exactly the commits up to
+ * that number.  When a transaction commits while others hold snapshots,
+ * the version each of its pages had before the commit is saved, stamped
+ * with the commit's number; a snapshot older than the stamp reads the
+ * saved version instead of the current one.  A page's versions form a
+ * chain, oldest first.  Versions are discarded once no snapshot is old
+ * enough to need them, and none are saved while no transaction holds a
+ * snapshot.
+ * <p>
+ * Commits are serialized, and a snapshot is never taken in the middle of
+ * one, so it never sees part of a commit.  The newest version of a page
+ * also tells whether the page was committed after a given snapshot, which
+ * is how the BufferPool detects write conflicts under snapshot isolation.
+ */
+public class VersionStore {
+
+    /** A committed version of a page, current for snapshots before end. */
+    private static class Version {
+        final PageId pid;
+        final long end;
+        final Page image;
+
+        Version(PageId pid, long end, Page image) {
+            this.pid = pid;
+            this.end = end;
+            this.image = image;
+        }
+    }
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final ConcurrentHashMap<TransactionId, Long> snapshots =
+        new ConcurrentHashMap<TransactionId, Long>();
+
+    // guarded by this
+    private final HashMap<PageId, LinkedList<Version>> chains =
+        new HashMap<PageId, LinkedList<Version>>();
+    // every saved version in commit order, so the oldest go first
+    private final LinkedList<Version> byAge = new LinkedList<Version>();
+
+    /**
+     * Returns tid's snapshot, taking it now if tid does not have one.
+     * Waits for a commit in progress.
+     */
+    public long snapshotOf(TransactionId tid) {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null)
+            return snapshot;
+        commitLock.lock();
+        try {
+            long now = clock.get();
+            snapshots.put(tid, now);
+            return now;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the version of pid that a snapshot sees, or null if it sees
+     * the page's current committed version.
+     */
+    public synchronized Page versionAt(PageId pid, long snapshot) {
+        LinkedList<Version> chain = chains.get(pid);
+        if (chain == null)
+            return null;
+        for (Version v : chain)
+            if (v.end > snapshot)
+                return v.image;
+        return null;
+    }
+
+    /** Returns true if pid was committed by a transaction after the snapshot. */
+    public synchronized boolean committedSince(PageId pid, long snapshot) {
+        LinkedList<Version> chain = chains.get(pid);
+        return chain != null && chain.getLast().end > snapshot;
+    }
+
+    /**
+     * Starts a commit by tid and returns its number.  Until
+     * {@link #endCommit}, no snapshot is taken and no other commit starts.
+     */
+    public long beginCommit(TransactionId tid) {
+        commitLock.lock();
+        return clock.get() + 1;
+    }
+
+    /**
+     * Saves the version a page had before the commit numbered commit, its
+     * before image, if a transaction other than committer holds a snapshot
+     * that needs it.  Must be called before the page is written.
+     */
+    public void saveVersion(TransactionId committer, Page page, long commit) {
+        if (!olderSnapshotExists(committer, commit))
+            return;
+        PageId pid = page.getId();
+        Version v = new Version(pid, commit, page.getBeforeImage());
+        synchronized (this) {
+            LinkedList<Version> chain = chains.get(pid);
+            if (chain == null) {
+                chain = new LinkedList<Version>();
+                chains.put(pid, chain);
+            }
+            chain.addLast(v);
+            byAge.addLast(v);
+        }
+    }
+
+    /** Finishes the commit numbered commit, making its versions visible to new snapshots. */
+    public void endCommit(long commit) {
+        clock.set(commit);
+        commitLock.unlock();
+    }
+
+    /** Drops tid's snapshot and any versions only it still needed. */
+    public void release(TransactionId tid) {
+        if (snapshots.remove(tid) == null)
+            return;
+        long oldest = clock.get();
+        for (Long snapshot : snapshots.values())
+            oldest = Math.min(oldest, snapshot);
+        synchronized (this) {
+            while (!byAge.isEmpty() && byAge.getFirst().end <= oldest) {
+                Version v = byAge.removeFirst();
+                LinkedList<Version> chain = chains.get(v.pid);
+                chain.removeFirst();
+                if (chain.isEmpty())
+                    chains.remove(v.pid);
+            }
+        }
+    }
+
+    /** Returns the number of old page versions kept. */
+    public synchronized int numVersions() {
+        return byAge.size();
+    }
+
+    /** Returns the number of transactions holding a snapshot. */
+    public int numSnapshots() {
+        return snapshots.size();
+    }
+
+    private boolean olderSnapshotExists(TransactionId committer, long commit) {
+        for (java.util.Map.Entry<TransactionId, Long> e : snapshots.entrySet())
+            if (e.getValue() < commit && !e.getKey().equals(committer))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * WaitsForGraph records which transactions each blocked lock request is
+ * waiting for, and finds cycles in the resulting graph.  A transaction can
+ * have several requests waiting at once (from different threads), so the
+ * edges are kept per request and a transaction waits for the union of its
+ * requests' blockers.
+ * <p>
+ * The LockManager updates a request's edges whenever the lock state of its
+ * page changes, with that page's monitor held, so the graph always matches
+ * the lock table and a cycle in it is a real deadlock.  All methods are
+ * synchronized; callers may hold a page monitor when calling them, so this
+ * class never calls back into the LockManager.
+ *
+ * @param <R> the type of a lock request
+ */
+public class WaitsForGraph<R> {
+
+    // transaction -> its blocked requests -> the transactions each waits for
+    private final HashMap<TransactionId, HashMap<R, Set<TransactionId>>> waits =
+        new HashMap<TransactionId, HashMap<R, Set<TransactionId>>>();
+
+    /**
+     * Records that request, made by tid, is waiting for blockers.  Replaces
+     * the request's previous edges.
+     */
+    public synchronized void setWaits(TransactionId tid, R request, Set<TransactionId> blockers) {
+        HashMap<R, Set<TransactionId>> requests = waits.get(tid);
+        if (requests == null) {
+            requests = new HashMap<R, Set<TransactionId>>();
+            waits.put(tid, requests);
+        }
+        requests.put(request, blockers);
+    }
+
+    /** Removes a request that was granted or given up. */
+    public synchronized void remove(TransactionId tid, R request) {
+        HashMap<R, Set<TransactionId>> requests = waits.get(tid);
+        if (requests != null) {
+            requests.remove(request);
+            if (requests.isEmpty())
+                waits.remove(tid);
+        }
+    }
+
+    /** Returns the blocked requests of tid. */
+    public synchronized List<R> requestsOf(TransactionId tid) {
+        HashMap<R, Set<TransactionId>> requests = waits.get(tid);
+        if (requests == null)
+            return new ArrayList<R>();
+        return new ArrayList<R>(requests.keySet());
+    }
+
+    /** Returns true if tid has a blocked request. */
+    public synchronized boolean isWaiting(TransactionId tid) {
+        return waits.containsKey(tid);
+    }
+
+    /**
+     * Returns the transactions on a cycle through start, beginning with
+     * start, or null if start is not deadlocked.
+     */
+    public List<TransactionId> findCycle(TransactionId start) {
+        return findCycle(start, new HashSet<TransactionId>());
+    }
+
+    /**
+     * Returns the transactions on a cycle through start that avoids the
+     * transactions in ignore, beginning with start, or null if there is no
+     * such cycle.  Used to look for further cycles once the victim of one
+     * has been chosen.
+     */
+    public synchronized List<TransactionId> findCycle(TransactionId start, Set<TransactionId> ignore) {
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(start);
+        if (search(start, start, path, new HashSet<TransactionId>(ignore)))
+            return path;
+        return null;
+    }
+
+    private boolean search(TransactionId start, TransactionId from,
+            ArrayList<TransactionId> path, Set<TransactionId> visited) {
+        HashMap<R, Set<TransactionId>> requests = waits.get(from);
+        if (requests == null)
+            return false;
+        for (Set<TransactionId> blockers : requests.values()) {
+            for (TransactionId next : blockers) {
+                if (next.equals(start))
+                    return true;
+                if (!visited.add(next))
+                    continue;
+                path.add(next);
+                if (search(start, next, path, visited))
+                    return true;
+                path.remove(path.size() - 1);
+            }
+        }
+        return false;
+    }
+
+    /** Returns the number of transactions with a blocked request. */
+    public synchronized int numWaiting() {
+        return waits.size();
+    }
+
+    /** For debugging: the edges of every blocked transaction. */
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<TransactionId, HashMap<R, Set<TransactionId>>> e : waits.entrySet()) {
+            Set<Long> to = new HashSet<Long>();
+            for (Set<TransactionId> blockers : e.getValue().values())
+                for (TransactionId tid : blockers)
+                    to.add(tid.getId());
+            sb.append(e.getKey().getId()).append(" -> ").append(to).append('\n');
+        }
+        return sb.toString();
+    }
+}
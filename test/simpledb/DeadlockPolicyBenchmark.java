@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Compares the LockManager's deadlock policies under contention.  Each
+ * thread runs transactions that take exclusive locks on a few pages of a
+ * small table, in random order, retrying a transaction until it commits.
+ * Reports the commit rate, the aborts per commit, and the median and 99th
+ * percentile time from a transaction's first attempt to its commit.
+ * <p>
+ * Run with: ant runbench -Dbench=DeadlockPolicyBenchmark
+ */
+public class DeadlockPolicyBenchmark {
+    private static final int THREADS = 8;
+    private static final int PAGES = 32;
+    private static final int PAGES_PER_TXN = 4;
+    private static final long MILLIS = 2000;
+
+    static void run(final LockManager.DeadlockPolicy policy) throws Exception {
+        final LockManager lm = new LockManager(policy, LockManager.VictimPolicy.YOUNGEST);
+        final ArrayList<ArrayList<Long>> latencies = new ArrayList<ArrayList<Long>>();
+        final long end = System.currentTimeMillis() + MILLIS;
+
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final ArrayList<Long> mine = new ArrayList<Long>();
+            latencies.add(mine);
+            final Random rand = new Random(t);
+            workers[t] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        int[] pages = new int[PAGES_PER_TXN];
+                        for (int i = 0; i < pages.length; i++)
+                            pages[i] = rand.nextInt(PAGES);
+                        long start = System.nanoTime();
+                        // wait-die and wound-wait need a restarted
+                        // transaction to keep its age
+                        TransactionId tid = new TransactionId();
+                        while (true) {
+                            try {
+                                for (int p : pages)
+                                    lm.addWriteLock(tid, new HeapPageId(1, p));
+                                // hold the locks for a moment, as if working
+                                Thread.yield();
+                                lm.releaseAll(tid);
+                                break;
+                            } catch (TransactionAbortedException e) {
+                                lm.releaseAll(tid);
+                                if (policy == LockManager.DeadlockPolicy.DETECT)
+                                    tid = new TransactionId();
+                                // let the transaction we conflicted with run
+                                Thread.yield();
+                            }
+                        }
+                        mine.add(System.nanoTime() - start);
+                    }
+                }
+            };
+        }
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+
+        ArrayList<Long> all = new ArrayList<Long>();
+        for (ArrayList<Long> l : latencies)
+            all.addAll(l);
+        Collections.sort(all);
+        System.out.printf("%-10s %8.0f txn/s %7.3f aborts/txn  p50 %7.1f us  p99 %8.1f us%n",
+                policy, all.size() * 1000.0 / MILLIS, (double) lm.getAbortCount() / all.size(),
+                all.get(all.size() / 2) / 1e3, all.get(all.size() * 99 / 100) / 1e3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(LockManager.DeadlockPolicy.DETECT);
+
+        System.out.printf("%d threads, %d of %d pages per transaction%n",
+                THREADS, PAGES_PER_TXN, PAGES);
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values())
+            run(policy);
+    }
+}
@@ -0,0 +1,44 @@
+package simpledb;
+
+import java.util.Random;
+
+/**
+ * Compares the hit ratios of the eviction policies on a mixed workload:
+ * point lookups on a skewed hot set (think dimension tables), periodically
+ * interrupted by a sequential scan of a table several times larger than
+ * the pool.
+ * <p>
+ * Run with: ant runbench -Dbench=EvictionPolicyBenchmark
+ */
+public class EvictionPolicyBenchmark {
+    private static final String[] POLICIES = {"lru", "clock", "2q", "lru-k", "arc"};
+    private static final int POOL = 1000;
+    private static final int HOT_PAGES = 800;
+    private static final int SCAN_PAGES = 3 * POOL;
+    private static final int LOOKUPS_PER_SCAN = 5000;
+    private static final int SCANS = 20;
+
+    static void read(PageCache cache, PageId pid) throws DbException {
+        if (cache.get(pid) == null)
+            cache.putIfAbsent(pid, new TestUtil.MockPage(pid));
+    }
+
+    public static void main(String[] args) throws DbException {
+        System.out.printf("%8s %12s %12s%n", "policy", "hit ratio", "evictions");
+        for (String name : POLICIES) {
+            PageCache cache = new PageCache(POOL, BufferPool.newEvictionPolicy(name, POOL));
+            Random rand = new Random(0);
+            for (int scan = 0; scan < SCANS; scan++) {
+                for (int i = 0; i < LOOKUPS_PER_SCAN; i++) {
+                    // squaring skews the lookups towards the low page numbers
+                    double r = rand.nextDouble();
+                    read(cache, new HeapPageId(1, (int) (r * r * HOT_PAGES)));
+                }
+                for (int i = 0; i < SCAN_PAGES; i++)
+                    read(cache, new HeapPageId(2, i));
+            }
+            System.out.printf("%8s %11.1f%% %12d%n", cache.getPolicy().getName(),
+                    100 * cache.getHitRatio(), cache.getEvictions());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+    private static final int POOL = 20;
+    private static final int HOT = 5;
+
+    private static final String[] POLICIES = {"lru", "clock", "2q", "lru-k", "arc"};
+
+    private static Page read(PageCache cache, int pgNo) throws DbException {
+        PageId pid = new HeapPageId(1, pgNo);
+        Page page = cache.get(pid);
+        if (page == null)
+            page = cache.putIfAbsent(pid, new TestUtil.MockPage(pid));
+        return page;
+    }
+
+    /**
+     * Touches a hot set of HOT pages repeatedly, interleaved with reads of
+     * cold pages, then runs a sequential scan over many more cold pages.
+     *
+     * @return the number of hot pages that survived the scan
+     */
+    private static int hotPagesAfterScan(EvictionPolicy policy) throws DbException {
+        PageCache cache = new PageCache(POOL, policy);
+        int cold = 1000;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < HOT; i++)
+                read(cache, i);
+            for (int i = 0; i < HOT; i++)
+                read(cache, cold++);
+        }
+
+        for (int i = 0; i < 10 * POOL; i++)
+            read(cache, cold++);
+
+        int resident = 0;
+        for (int i = 0; i < HOT; i++)
+            if (cache.peek(new HeapPageId(1, i)) != null)
+                resident++;
+        return resident;
+    }
+
+    /**
+     * A sequential flood evicts the whole working set under LRU
+     */
+    @Test public void lruIsNotScanResistant() throws Exception {
+        assertEquals(0, hotPagesAfterScan(new LruPolicy()));
+    }
+
+    /**
+     * The scan-resistant policies keep the working set through a flood
+     */
+    @Test public void scanResistance() throws Exception {
+        assertEquals(HOT, hotPagesAfterScan(new TwoQueuePolicy(POOL)));
+        assertEquals(HOT, hotPagesAfterScan(new LruKPolicy(POOL)));
+        assertEquals(HOT, hotPagesAfterScan(new ArcPolicy(POOL)));
+    }
+
+    /**
+     * No policy ever evicts a dirty page, and every policy keeps the cache
+     * within its capacity
+     */
+    @Test public void skipsDirtyPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (String name : POLICIES) {
+            PageCache cache = new PageCache(POOL, BufferPool.newEvictionPolicy(name, POOL));
+            for (int i = 0; i < POOL / 2; i++)
+                read(cache, i).markDirty(true, tid);
+
+            for (int i = 100; i < 100 + 5 * POOL; i++)
+                read(cache, i);
+
+            for (int i = 0; i < POOL / 2; i++)
+                assertNotNull(name, cache.peek(new HeapPageId(1, i)));
+            assertTrue(name, cache.size() <= POOL);
+        }
+    }
+
+    /**
+     * A page evicted from ARC's T1 and read again lands in B1 and grows
+     * the target size of T1
+     */
+    @Test public void arcAdapts() throws Exception {
+        ArcPolicy arc = new ArcPolicy(4);
+        PageCache cache = new PageCache(4, arc);
+        for (int i = 0; i < 4; i++)
+            read(cache, i);
+        read(cache, 0); // 0 and 1 move to T2
+        read(cache, 1);
+        read(cache, 4); // evicts 2 and 3 from T1 into B1
+        read(cache, 5);
+        assertEquals(0, arc.getTarget());
+        assertNull(cache.peek(new HeapPageId(1, 2)));
+
+        read(cache, 2); // ghost hit in B1
+        assertEquals(1, arc.getTarget());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
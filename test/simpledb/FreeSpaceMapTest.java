@@ -0,0 +1,140 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+    // 504 two-int tuples fill a page
+    private static final int PER_PAGE = 504;
+
+    private TransactionId tid;
+    private File f;
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test: a table of three full
+     * pages and one with room.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        f = SystemTestUtil.createRandomHeapFileUnopened(2, PER_PAGE * 3 + 10, 1000, null, null);
+        hf = Utility.openHeapFile(2, f);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.rebuild() from the page headers
+     */
+    @Test public void rebuild() throws Exception {
+        assertFalse(FreeSpaceMap.sidecarFor(f).exists());
+        FreeSpaceMap map = hf.freeSpace();
+        assertTrue(FreeSpaceMap.sidecarFor(f).exists());
+
+        assertFalse(map.hasRoom(0));
+        assertFalse(map.hasRoom(2));
+        assertTrue(map.hasRoom(3));
+        assertEquals(3, map.nextFree(0, 4));
+        assertEquals(-1, map.nextFree(0, 3));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple(): inserts go to a page freed by a
+     * delete, and to the partly full last page, without adding pages
+     */
+    @Test public void insertUsesFreePages() throws Exception {
+        HeapPage page1 = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page1.iterator().next());
+        assertTrue(hf.freeSpace().hasRoom(1));
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().pageNumber());
+        assertFalse(hf.freeSpace().hasRoom(1));
+
+        t = Utility.getHeapTuple(-2, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(3, t.getRecordId().getPageId().pageNumber());
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() into an empty file, which has
+     * no sidecar yet
+     */
+    @Test public void insertIntoEmptyFile() throws Exception {
+        File empty = File.createTempFile("empty", ".dat");
+        empty.deleteOnExit();
+        FreeSpaceMap.sidecarFor(empty).deleteOnExit();
+        HeapFile ehf = Utility.openHeapFile(2, empty);
+
+        Database.getBufferPool().insertTuple(tid, ehf.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(1, ehf.numPages());
+        assertTrue(ehf.freeSpace().hasRoom(0));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.open(): the map is read back from its
+     * sidecar, and rebuilt if the sidecar is the wrong size
+     */
+    @Test public void persisted() throws Exception {
+        for (int i = 0; i < PER_PAGE; ++i)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5, hf.numPages());
+
+        // page 3 filled, page 4 appended with room
+        FreeSpaceMap map = FreeSpaceMap.open(new HeapFile(f, Utility.getTupleDesc(2)));
+        assertEquals(4, map.nextFree(0, 5));
+
+        RandomAccessFile raf = new RandomAccessFile(FreeSpaceMap.sidecarFor(f), "rw");
+        raf.setLength(5);
+        raf.close();
+        map = FreeSpaceMap.open(new HeapFile(f, Utility.getTupleDesc(2)));
+        assertEquals(4, map.nextFree(0, 5));
+        assertEquals(1, FreeSpaceMap.sidecarFor(f).length());
+    }
+
+    /**
+     * Unit test for BufferPool.transactionComplete(): aborting the inserts
+     * that filled a page marks it as having room again, so later inserts
+     * use it instead of appending a page
+     */
+    @Test public void abortFreesPage() throws Exception {
+        for (int i = 0; i < PER_PAGE - 10; ++i)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        assertFalse(hf.freeSpace().hasRoom(3));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        assertTrue(hf.freeSpace().hasRoom(3));
+        FreeSpaceMap map = FreeSpaceMap.open(new HeapFile(f, Utility.getTupleDesc(2)));
+        assertEquals(3, map.nextFree(0, 4));
+
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        assertEquals(3, t.getRecordId().getPageId().pageNumber());
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Measures small committing transactions with and without group commit.
+ * Each thread inserts one tuple per transaction into a table of its own,
+ * so the transactions never wait for each other's locks, and commits;
+ * the page write and the commit each need the log on disk.
+ * <p>
+ * Run with: ant runbench -Dbench=GroupCommitBenchmark
+ */
+public class GroupCommitBenchmark {
+    private static final int THREADS = 16;
+    private static final long MILLIS = 2000;
+
+    /** @return {committed transactions per second, log forces per commit} */
+    static double[] run(boolean groupCommit) throws Exception {
+        Database.reset();
+        final HeapFile[] tables = new HeapFile[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            File f = File.createTempFile("group", ".dat");
+            f.deleteOnExit();
+            FreeSpaceMap.sidecarFor(f).deleteOnExit();
+            tables[t] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(groupCommit);
+        long forcesBefore = log.getForceCount();
+
+        final long[] commits = new long[THREADS];
+        final long end = System.currentTimeMillis() + MILLIS;
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int me = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            Transaction txn = new Transaction();
+                            txn.start();
+                            Database.getBufferPool().insertTuple(txn.getId(),
+                                    tables[me].getId(), Utility.getHeapTuple(me, 2));
+                            txn.commit();
+                            commits[me]++;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long c = 0;
+        for (long n : commits)
+            c += n;
+        return new double[] { c / secs, (double) (log.getForceCount() - forcesBefore) / c };
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(false);
+        run(true);
+
+        System.out.printf("%d threads, one insert per transaction%n", THREADS);
+        double[] single = run(false);
+        System.out.printf("force per commit: %8.0f txn/s %6.2f forces/txn%n", single[0], single[1]);
+        double[] group = run(true);
+        System.out.printf("group commit:     %8.0f txn/s %6.2f forces/txn%n", group[0], group[1]);
+    }
+}
@@ -0,0 +1,84 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the latency of a BufferPool page miss for random pages of a
+ * table that is in the OS page cache.  It reports the raw I/O cost of the
+ * old access pattern (open a RandomAccessFile, seek, read, close) and of
+ * a positional read on a cached FileChannel, and then the cost of a whole
+ * HeapFile.readPage, which also decodes the page, and of reading the
+ * page and the first field of every tuple on it, as a filtered scan does.
+ * <p>
+ * Run with: ant runbench -Dbench=HeapFileReadBenchmark
+ */
+public class HeapFileReadBenchmark {
+    private static final int PAGES = 2000;
+    private static final int READS = 200000;
+
+    interface PageReader {
+        void read(int pgNo) throws IOException;
+    }
+
+    /** @return mean microseconds per read */
+    static double run(PageReader reader) throws IOException {
+        Random rand = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++)
+            reader.read(rand.nextInt(PAGES));
+        return (System.nanoTime() - start) / 1000.0 / READS;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        final File f = hf.getFile();
+        final byte[] data = new byte[BufferPool.PAGE_SIZE];
+
+        PageReader reopen = new PageReader() {
+            public void read(int pgNo) throws IOException {
+                RandomAccessFile raf = new RandomAccessFile(f, "r");
+                raf.seek((long) BufferPool.PAGE_SIZE * pgNo);
+                raf.read(data, 0, BufferPool.PAGE_SIZE);
+                raf.close();
+            }
+        };
+        final FileChannel ch = Database.getCatalog().getFileHandles().get(f);
+        PageReader positional = new PageReader() {
+            public void read(int pgNo) throws IOException {
+                FileHandleCache.readFully(ch, ByteBuffer.wrap(data),
+                        (long) BufferPool.PAGE_SIZE * pgNo);
+            }
+        };
+        PageReader readPage = new PageReader() {
+            public void read(int pgNo) {
+                hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            }
+        };
+        PageReader scanPage = new PageReader() {
+            public void read(int pgNo) {
+                Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo))).iterator();
+                while (it.hasNext())
+                    it.next().getField(0);
+            }
+        };
+
+        // warm up the JIT and the OS cache
+        run(reopen);
+        run(positional);
+        run(readPage);
+        run(scanPage);
+
+        System.out.printf("open/seek/read/close: %8.2f us/page%n", run(reopen));
+        System.out.printf("positional read:      %8.2f us/page%n", run(positional));
+        System.out.printf("HeapFile.readPage:    %8.2f us/page%n", run(readPage));
+        System.out.printf("readPage + field 0:   %8.2f us/page%n", run(scanPage));
+    }
+}
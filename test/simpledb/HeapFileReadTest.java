@@ -121,6 +121,49 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.readPage(): interrupting a reader closes the
+     * shared channel under other readers, whose reads reopen it and go on
+     */
+    @Test
+    public void readsSurviveInterrupt() throws Exception {
+        final HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        final boolean[] failed = new boolean[1];
+        final Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5000; j++)
+                            hf.readPage(pid);
+                    } catch (RuntimeException e) {
+                        failed[0] = true;
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        // a reader that is interrupted over and over
+        Thread victim = new Thread() {
+            public void run() {
+                for (int j = 0; j < 5000; j++) {
+                    try {
+                        hf.readPage(pid);
+                    } catch (RuntimeException e) {
+                        Thread.interrupted();
+                    }
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        victim.start();
+        victim.join();
+        for (Thread r : readers)
+            r.join();
+        assertFalse(failed[0]);
+        assertNotNull(hf.readPage(pid));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,45 @@
+package simpledb;
+
+import java.util.Iterator;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures the cost of serializing a full HeapPage, as BufferPool does on
+ * every flush and log write: a page that is unchanged since it was read,
+ * and one with a tuple deleted and another inserted.
+ * <p>
+ * Run with: ant runbench -Dbench=HeapPageWriteBenchmark
+ */
+public class HeapPageWriteBenchmark {
+    private static final int WRITES = 200000;
+
+    /** @return mean microseconds per getPageData */
+    static double run(HeapPage page) {
+        long start = System.nanoTime();
+        int sum = 0;
+        for (int i = 0; i < WRITES; i++)
+            sum += page.getPageData()[i % BufferPool.PAGE_SIZE];
+        if (sum == 42)
+            System.out.print("");
+        return (System.nanoTime() - start) / 1000.0 / WRITES;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        HeapPage clean = (HeapPage) hf.readPage(pid);
+        HeapPage modified = (HeapPage) hf.readPage(pid);
+        Iterator<Tuple> it = modified.iterator();
+        modified.deleteTuple(it.next());
+        modified.insertTuple(Utility.getHeapTuple(-1, 2));
+
+        // warm up the JIT
+        run(clean);
+        run(modified);
+
+        System.out.printf("unmodified page: %8.2f us/page%n", run(clean));
+        System.out.printf("modified page:   %8.2f us/page%n", run(modified));
+    }
+}
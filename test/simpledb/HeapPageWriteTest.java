@@ -1,9 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +129,132 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage() after the page is modified,
+     * and for tuples deleted from the page before their fields were read
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple victim = page.iterator().next();
+        page.deleteTuple(victim);
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        page.insertTuple(Utility.getHeapTuple(-2, 2));
+
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[0][0]), victim.getField(0));
+        assertEquals(new IntField(HeapPageReadTest.EXAMPLE_VALUES[0][1]), victim.getField(1));
+
+        HeapPage before = page.getBeforeImage();
+        assertEquals(484, before.getNumEmptySlots());
+        assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, before.getPageData()));
+
+        page.setBeforeImage();
+        assertEquals(483, page.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for HeapPage.writePageData() on a modified page: the bytes
+     * match getPageData and decode to the same tuples
+     */
+    @Test public void writePageData() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        it.next();
+        page.deleteTuple(it.next());
+        page.insertTuple(Utility.getHeapTuple(-1, 2));
+        page.insertTuple(Utility.getHeapTuple(-2, 2));
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(BufferPool.PAGE_SIZE + 10);
+        buf.position(10);
+        page.writePageData(buf);
+        assertEquals(BufferPool.PAGE_SIZE + 10, buf.position());
+
+        byte[] data = page.getPageData();
+        byte[] written = new byte[BufferPool.PAGE_SIZE];
+        buf.position(10);
+        buf.get(written);
+        assertTrue(Arrays.equals(data, written));
+
+        HeapPage copy = new HeapPage(pid, data);
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> expected = page.iterator();
+        Iterator<Tuple> actual = copy.iterator();
+        while (expected.hasNext())
+            assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+        assertFalse(actual.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.iterator() on a sparse page after mass deletes,
+     * and while tuples are inserted
+     */
+    @Test public void sparseIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(Utility.getHeapTuple(0, 2));
+
+        LinkedList<Tuple> tuples = new LinkedList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            tuples.add(it.next());
+        assertEquals(504, tuples.size());
+        for (Tuple t : tuples) {
+            int slot = t.getRecordId().tupleno();
+            if (slot != 3 && slot != 130 && slot != 503)
+                page.deleteTuple(t);
+        }
+        assertEquals(501, page.getNumEmptySlots());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(501, copy.getNumEmptySlots());
+        it = copy.iterator();
+        copy.deleteTuple(copy.iterator().next());
+        copy.insertTuple(Utility.getHeapTuple(7, 2));
+        assertEquals(130, it.next().getRecordId().tupleno());
+        assertEquals(503, it.next().getRecordId().tupleno());
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for the HeapPage latch: threads inserting into one page
+     * at once fill distinct slots
+     */
+    @Test public void concurrentInserts() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        final int threads = 4;
+        final int each = page.getNumEmptySlots() / threads;
+        Thread[] writers = new Thread[threads];
+        final Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            writers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < each; i++)
+                            page.insertTuple(Utility.getHeapTuple(me, 2));
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        for (Thread w : writers)
+            w.join();
+        assertEquals(null, failure[0]);
+
+        boolean[] seen = new boolean[504];
+        int n = 0;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            int slot = it.next().getRecordId().tupleno();
+            assertFalse(seen[slot]);
+            seen[slot] = true;
+            n++;
+        }
+        assertEquals(threads * each, n);
+        assertEquals(504 - threads * each, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * Measures LockManager throughput with several threads running short
+ * transactions.  In the "shared" case each transaction takes shared locks
+ * on pages every thread reads and exclusive locks on pages of its own, so
+ * no request ever waits.  In the "hot page" case every transaction also
+ * takes an exclusive lock on one page, so requests queue behind each other
+ * and throughput depends on how quickly a waiter is woken.
+ * <p>
+ * Run with: ant runbench -Dbench=LockManagerBenchmark
+ */
+public class LockManagerBenchmark {
+    private static final int TABLE = 1;
+    private static final int PAGES_PER_TXN = 8;
+    private static final long MILLIS = 1000;
+
+    /** @return transactions per second */
+    static double run(final int threads, final boolean hot) throws Exception {
+        final LockManager lm = new LockManager();
+        final long[] counts = new long[threads];
+        final long end = System.currentTimeMillis() + MILLIS;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (hot)
+                                lm.addWriteLock(tid, new HeapPageId(TABLE, 0));
+                            for (int i = 1; i <= PAGES_PER_TXN; i++) {
+                                lm.addReadLock(tid, new HeapPageId(TABLE, i));
+                                lm.addWriteLock(tid, new HeapPageId(TABLE, 1000 * (me + 1) + i));
+                            }
+                            counts[me]++;
+                        } catch (TransactionAbortedException e) {
+                            // counted as no work
+                        }
+                        lm.releaseAll(tid);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        return total / secs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(2, false);
+
+        System.out.printf("%d cpus, %d pages per transaction%n",
+                Runtime.getRuntime().availableProcessors(), 2 * PAGES_PER_TXN);
+        for (int threads : new int[] { 1, 4, 16 }) {
+            System.out.printf("%2d threads  shared: %10.0f txn/s  hot page: %10.0f txn/s%n",
+                    threads, run(threads, false), run(threads, true));
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+    /** Time to wait for a blocked request to settle, in ms */
+    private static final int SETTLE = 100;
+
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+    private final PageId p2 = new HeapPageId(1, 2);
+
+    /** Requests a lock on a new thread and records the outcome. */
+    private static class Grabber extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final boolean exclusive;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Grabber(LockManager lm, TransactionId tid, PageId pid, boolean exclusive) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.exclusive = exclusive;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (exclusive)
+                    lm.addWriteLock(tid, pid);
+                else
+                    lm.addReadLock(tid, pid);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    private static Set<TransactionId> setOf(TransactionId tid) {
+        return new HashSet<TransactionId>(Arrays.asList(tid));
+    }
+
+    /**
+     * Unit test for WaitsForGraph.findCycle()
+     */
+    @Test public void findCycle() {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        WaitsForGraph<String> g = new WaitsForGraph<String>();
+
+        g.setWaits(t1, "a", setOf(t2));
+        g.setWaits(t2, "b", setOf(t3));
+        assertNull(g.findCycle(t1));
+
+        g.setWaits(t3, "c", setOf(t1));
+        assertEquals(Arrays.asList(t1, t2, t3), g.findCycle(t1));
+        assertEquals(Arrays.asList(t3, t1, t2), g.findCycle(t3));
+
+        g.remove(t2, "b");
+        assertNull(g.findCycle(t1));
+        assertFalse(g.isWaiting(t2));
+    }
+
+    /**
+     * Unit test for LockManager deadlock detection: the youngest
+     * transaction on the cycle is aborted at once, and the other is
+     * granted its lock when the victim releases
+     */
+    @Test public void youngestIsVictim() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.YOUNGEST);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.addWriteLock(older, p0);
+        lm.addWriteLock(younger, p1);
+
+        Grabber g1 = new Grabber(lm, older, p1, true);
+        Thread.sleep(SETTLE);
+        assertTrue(lm.isWaiting(older));
+
+        Grabber g2 = new Grabber(lm, younger, p0, true);
+        g2.join(SETTLE);
+        assertTrue(g2.aborted);
+        assertEquals(1, lm.getDeadlockCount());
+
+        lm.releaseAll(younger);
+        g1.join(SETTLE);
+        assertTrue(g1.acquired);
+    }
+
+    /**
+     * Unit test for LockManager deadlock detection: a waiting transaction
+     * can be chosen as the victim when another one closes the cycle
+     */
+    @Test public void fewestLocksIsVictim() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId small = new TransactionId();
+        TransactionId big = new TransactionId();
+        lm.addReadLock(small, p0);
+        lm.addReadLock(big, p1);
+        lm.addReadLock(big, p2);
+
+        Grabber g1 = new Grabber(lm, small, p1, true);
+        Thread.sleep(SETTLE);
+        Grabber g2 = new Grabber(lm, big, p0, true);
+        g1.join(SETTLE);
+        assertTrue(g1.aborted);
+        assertFalse(g2.aborted);
+
+        lm.releaseAll(small);
+        g2.join(SETTLE);
+        assertTrue(g2.acquired);
+    }
+
+    /**
+     * Unit test for LockManager deadlock detection: two transactions
+     * upgrading shared locks on the same page
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        LockManager lm = new LockManager(LockManager.VictimPolicy.LEAST_WORK);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.addWriteLock(t1, p1);
+        lm.addReadLock(t1, p0);
+        lm.addReadLock(t2, p0);
+
+        Grabber g1 = new Grabber(lm, t1, p0, true);
+        Thread.sleep(SETTLE);
+        Grabber g2 = new Grabber(lm, t2, p0, true);
+        g2.join(SETTLE);
+        assertTrue(g2.aborted);
+
+        lm.releaseAll(t2);
+        g1.join(SETTLE);
+        assertTrue(g1.acquired);
+        assertTrue(lm.holdsWriteLock(t1, p0));
+    }
+
+    /**
+     * Unit test for wait-die: an older transaction waits for a younger
+     * one, and a younger one that would wait for an older one aborts
+     */
+    @Test public void waitDie() throws Exception {
+        LockManager lm = new LockManager(LockManager.DeadlockPolicy.WAIT_DIE,
+                LockManager.VictimPolicy.YOUNGEST);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.addWriteLock(older, p0);
+        lm.addWriteLock(younger, p1);
+
+        Grabber g1 = new Grabber(lm, older, p1, true);
+        Thread.sleep(SETTLE);
+        assertTrue(lm.isWaiting(older));
+
+        try {
+            lm.addReadLock(younger, p0);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getAbortCount());
+
+        lm.releaseAll(younger);
+        g1.join(SETTLE);
+        assertTrue(g1.acquired);
+    }
+
+    /**
+     * Unit test for wound-wait: a younger transaction waits for an older
+     * one, and an older one that would wait for a younger one wounds it,
+     * aborting its blocked request at once and its next one otherwise
+     */
+    @Test public void woundWait() throws Exception {
+        LockManager lm = new LockManager(LockManager.DeadlockPolicy.WOUND_WAIT,
+                LockManager.VictimPolicy.YOUNGEST);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.addWriteLock(older, p0);
+        lm.addWriteLock(younger, p1);
+
+        Grabber g1 = new Grabber(lm, younger, p0, true);
+        Thread.sleep(SETTLE);
+        assertTrue(lm.isWaiting(younger));
+
+        Grabber g2 = new Grabber(lm, older, p1, true);
+        g1.join(SETTLE);
+        assertTrue(g1.aborted);
+        assertEquals(1, lm.getAbortCount());
+        assertFalse(g2.acquired);
+
+        // still wounded until it completes
+        try {
+            lm.addReadLock(younger, p2);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        lm.releaseAll(younger);
+        g2.join(SETTLE);
+        assertTrue(g2.acquired);
+        lm.addReadLock(younger, p2);
+    }
+
+    /**
+     * Unit test for LockManager.exclusivePages() and releaseAll(), with
+     * every page in one stripe
+     */
+    @Test public void exclusivePages() throws Exception {
+        LockManager lm = new LockManager(LockManager.DeadlockPolicy.DETECT,
+                LockManager.VictimPolicy.YOUNGEST, 1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.addReadLock(t1, p0);
+        lm.addWriteLock(t1, p1);
+        lm.addReadLock(t1, p2);
+        lm.addWriteLock(t1, p2);
+        lm.addReadLock(t2, p0);
+        assertEquals(new HashSet<PageId>(Arrays.asList(p1, p2)),
+                new HashSet<PageId>(lm.exclusivePages(t1)));
+        assertTrue(lm.exclusivePages(t2).isEmpty());
+
+        lm.release(t1, p2);
+        assertEquals(Arrays.asList(p1), lm.exclusivePages(t1));
+
+        Grabber g = new Grabber(lm, t2, p1, false);
+        Thread.sleep(SETTLE);
+        assertFalse(g.acquired);
+        lm.releaseAll(t1);
+        g.join(SETTLE);
+        assertTrue(g.acquired);
+        assertFalse(lm.holdsReadLock(t1, p0));
+        assertTrue(lm.exclusivePages(t1).isEmpty());
+    }
+
+    /**
+     * Unit test for LockManager.LockMode compatibility and conversion
+     */
+    @Test public void lockModes() {
+        LockManager.LockMode IS = LockManager.LockMode.IS;
+        LockManager.LockMode IX = LockManager.LockMode.IX;
+        LockManager.LockMode S = LockManager.LockMode.S;
+        LockManager.LockMode SIX = LockManager.LockMode.SIX;
+        LockManager.LockMode X = LockManager.LockMode.X;
+
+        assertTrue(IS.compatibleWith(SIX));
+        assertTrue(IX.compatibleWith(IX));
+        assertFalse(IX.compatibleWith(S));
+        assertFalse(S.compatibleWith(SIX));
+        assertFalse(IS.compatibleWith(X));
+
+        assertTrue(SIX.covers(IX));
+        assertFalse(IX.covers(S));
+        assertEquals(SIX, S.join(IX));
+        assertEquals(IX, IS.join(IX));
+        assertEquals(X, SIX.join(X));
+    }
+
+    /**
+     * Unit test for intention locks: page locks take IS or IX on their
+     * table, which conflicts with S and X table locks but not with each
+     * other
+     */
+    @Test public void intentionLocks() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId scanner = new TransactionId();
+        lm.addWriteLock(writer, p0);
+        lm.addReadLock(reader, p1);
+        assertEquals(LockManager.LockMode.IX, lm.tableLockOf(writer, 1));
+        assertEquals(LockManager.LockMode.IS, lm.tableLockOf(reader, 1));
+
+        Grabber g = new Grabber(lm, scanner, p2, false);
+        g.join(SETTLE);
+        assertTrue(g.acquired);
+        lm.releaseAll(scanner);
+
+        final LockManager fLm = lm;
+        final TransactionId fScanner = scanner;
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    fLm.lockTable(fScanner, 1, LockManager.LockMode.S);
+                } catch (TransactionAbortedException e) {
+                    // checked below
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        t.join(SETTLE);
+        assertNull(lm.tableLockOf(scanner, 1));
+
+        lm.releaseAll(writer);
+        t.join(SETTLE);
+        assertEquals(LockManager.LockMode.S, lm.tableLockOf(scanner, 1));
+        assertTrue(lm.holdsReadLock(scanner, p0));
+        assertFalse(lm.holdsWriteLock(scanner, p0));
+    }
+
+    /**
+     * Unit test for lock escalation: past the threshold, a transaction's
+     * page locks on a table become one table lock, unless another
+     * transaction's lock on the table conflicts
+     */
+    @Test public void escalation() throws Exception {
+        LockManager lm = new LockManager();
+        lm.setEscalationThreshold(2);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.addReadLock(t2, new HeapPageId(2, 0));
+        lm.addWriteLock(t1, new HeapPageId(2, 1));
+        lm.addWriteLock(t1, new HeapPageId(2, 2));
+        lm.addWriteLock(t1, new HeapPageId(2, 3));
+        // t2's IS lock blocks X on the table
+        assertEquals(0, lm.getEscalationCount());
+        assertEquals(LockManager.LockMode.IX, lm.tableLockOf(t1, 2));
+
+        lm.addReadLock(t1, p0);
+        lm.addReadLock(t1, p1);
+        lm.addReadLock(t1, p2);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(LockManager.LockMode.S, lm.tableLockOf(t1, 1));
+        assertTrue(lm.holdsReadLock(t1, new HeapPageId(1, 99)));
+
+        // writes under the escalated lock convert it to SIX
+        lm.addWriteLock(t1, p0);
+        assertEquals(LockManager.LockMode.SIX, lm.tableLockOf(t1, 1));
+        assertTrue(lm.exclusivePages(t1).contains(p0));
+
+        // SIX admits readers but not writers
+        Grabber reader = new Grabber(lm, t2, p1, false);
+        reader.join(SETTLE);
+        assertTrue(reader.acquired);
+        Grabber g = new Grabber(lm, t2, p2, true);
+        g.join(SETTLE);
+        assertFalse(g.acquired);
+        lm.releaseAll(t1);
+        g.join(SETTLE);
+        assertTrue(g.acquired);
+    }
+
+    /**
+     * Unit test for LockManager statistics: grants are counted per mode,
+     * waits per page, and the waits-for state can be dumped
+     */
+    @Test public void stats() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.addReadLock(t1, p0);
+        lm.addWriteLock(t1, p1);
+        assertEquals(1, lm.getAcquireCount(LockManager.LockMode.S));
+        assertEquals(1, lm.getAcquireCount(LockManager.LockMode.X));
+        assertEquals(0, lm.getStats().getWaitCount());
+        assertEquals("no transaction is waiting\n", lm.describeWaits());
+
+        Grabber g = new Grabber(lm, t2, p1, false);
+        g.join(SETTLE);
+        assertFalse(g.acquired);
+        assertEquals(1, lm.getStats().getWaitCount(LockManager.LockMode.S));
+        String waits = lm.describeWaits();
+        assertTrue(waits, waits.startsWith(p1 + ": held by " + t1.getId() + "(X)"));
+        assertTrue(waits, waits.contains("waiting " + t2.getId() + "(S)"));
+
+        lm.releaseAll(t1);
+        g.join(SETTLE);
+        assertTrue(g.acquired);
+        LockStats.Contention top = lm.getStats().topContended(5).get(0);
+        assertEquals(p1, top.getKey());
+        assertEquals(1, top.getWaitCount());
+        assertEquals(1, top.getMaxQueueDepth());
+        assertTrue(top.getWaitNanos() > 0);
+        assertTrue(lm.getStats().getWaitPercentile(1.0) > 0);
+
+        lm.resetStats();
+        assertEquals(0, lm.getAcquireCount(LockManager.LockMode.S));
+        assertTrue(lm.getStats().topContended(5).isEmpty());
+    }
+
+    /**
+     * Unit test for LockManager.parseDeadlockPolicy()
+     */
+    @Test public void parseDeadlockPolicy() {
+        assertEquals(LockManager.DeadlockPolicy.DETECT, LockManager.parseDeadlockPolicy(null));
+        assertEquals(LockManager.DeadlockPolicy.WOUND_WAIT, LockManager.parseDeadlockPolicy("wound-wait"));
+        assertEquals(LockManager.DeadlockPolicy.WAIT_DIE, LockManager.parseDeadlockPolicy("Wait-Die"));
+    }
+
+    /**
+     * Unit test for LockManager.parseVictimPolicy()
+     */
+    @Test public void parseVictimPolicy() {
+        assertEquals(LockManager.VictimPolicy.YOUNGEST, LockManager.parseVictimPolicy(null));
+        assertEquals(LockManager.VictimPolicy.LEAST_WORK, LockManager.parseVictimPolicy("Least-Work"));
+        try {
+            LockManager.parseVictimPolicy("oldest");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
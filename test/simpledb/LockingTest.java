@@ -186,6 +186,41 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A waiting writer blocks readers that arrive after it, so readers
+   * cannot starve it.
+   */
+  @Test public void waitingWriterBlocksReaders() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    TestUtil.LockGrabber writer = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT / 2);
+
+    grabLock(new TransactionId(), p0, Permissions.READ_ONLY, false);
+    assertEquals(false, writer.acquired());
+    writer.stop();
+  }
+
+  /**
+   * Unit test for BufferPool.getPage() and BufferPool.releasePage()
+   * assuming locking.
+   * A blocked request is granted as soon as the conflicting lock is
+   * released.
+   */
+  @Test public void releaseWakesWaiter() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber reader = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    reader.start();
+    Thread.sleep(TIMEOUT / 2);
+    assertEquals(false, reader.acquired());
+
+    bp.releasePage(tid1, p0);
+    reader.join(TIMEOUT);
+    assertEquals(true, reader.acquired());
+    assertNull(reader.getError());
+  }
+
   /**
    * JUnit suite target
    */
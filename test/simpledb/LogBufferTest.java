@@ -0,0 +1,63 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for LogBuffer: bytes are written in order, from the given
+   * offset, only when the ring fills or the buffer is flushed
+   */
+  @Test public void writesInOrder() throws Exception {
+    File f = File.createTempFile("logbuffer", ".dat");
+    f.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    raf.writeLong(-1);
+
+    // 3 segments of 10 bytes
+    LogBuffer buffer = new LogBuffer(3, 10);
+    buffer.reset(raf.getChannel(), 8);
+    byte[] data = new byte[45];
+    for (int i = 0; i < data.length; i++)
+      data[i] = (byte) i;
+
+    buffer.write(data, 0, 25);
+    assertEquals(25, buffer.size());
+    assertEquals(33, buffer.end());
+    assertEquals(0, buffer.getWriteCount());
+    assertEquals(8, raf.length());
+
+    // overflowing the ring writes the 30 bytes it holds at once
+    buffer.write(data, 25, 10);
+    buffer.write(data[35]);
+    assertEquals(1, buffer.getWriteCount());
+    assertEquals(38, raf.length());
+    assertEquals(6, buffer.size());
+
+    buffer.write(data, 36, 9);
+    buffer.flush();
+    assertEquals(2, buffer.getWriteCount());
+    assertEquals(0, buffer.size());
+    assertEquals(53, buffer.end());
+
+    byte[] read = new byte[data.length];
+    raf.seek(8);
+    raf.readFully(read);
+    assertTrue(Arrays.equals(data, read));
+    raf.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
@@ -0,0 +1,263 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends TestUtil.CreateHeapFile {
+  private File file;
+
+  /**
+   * Set up an empty table, logged from scratch.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = empty.getFile();
+  }
+
+  /** Inserts the given values in a transaction that is flushed but not completed. */
+  private Transaction insert(int... values) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int v : values)
+      Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(v, 2));
+    Database.getBufferPool().flushPages(t.getId());
+    return t;
+  }
+
+  /** Simulates a crash and restart, then recovers the table. */
+  private void crash() throws Exception {
+    Database.reset();
+    empty = Utility.openHeapFile(2, file);
+    Database.getLogFile().recover();
+  }
+
+  /** Returns the first fields of the table's tuples, sorted. */
+  private List<Integer> contents() throws Exception {
+    List<Integer> values = new ArrayList<Integer>();
+    TransactionId tid = new TransactionId();
+    DbFileIterator it = empty.iterator(tid);
+    it.open();
+    while (it.hasNext())
+      values.add(((IntField) it.next().getField(0)).getValue());
+    it.close();
+    Database.getBufferPool().transactionComplete(tid);
+    Collections.sort(values);
+    return values;
+  }
+
+  /**
+   * Unit test for LogFile.recover(): committed updates survive a crash,
+   * and those of transactions running at it are undone
+   */
+  @Test public void recover() throws Exception {
+    insert(1, 2).commit();
+    insert(3);
+
+    crash();
+    assertEquals(Arrays.asList(1, 2), contents());
+
+    // recovery ended the loser, so a second pass changes nothing
+    crash();
+    assertEquals(Arrays.asList(1, 2), contents());
+  }
+
+  /**
+   * Unit test for LogFile.recover(): recovery starts from the last
+   * checkpoint, and undoes a transaction running at it
+   */
+  @Test public void recoverFromCheckpoint() throws Exception {
+    insert(1).commit();
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(2, 2));
+    // writes the uncommitted page, after logging it
+    Database.getLogFile().logCheckpoint();
+
+    crash();
+    assertEquals(Arrays.asList(1), contents());
+  }
+
+  /**
+   * Unit test for LogFile.rollback(): an abort undoes updates a
+   * checkpoint wrote, and a crash after a rollback that never logged its
+   * abort does not undo them again
+   */
+  @Test public void rollback() throws Exception {
+    insert(1).commit();
+    Transaction t = insert(2);
+    t.abort();
+    assertEquals(Arrays.asList(1), contents());
+
+    // a checkpoint writes an uncommitted page
+    t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(3, 2));
+    Database.getLogFile().logCheckpoint();
+    // roll back without logging the abort, as if the crash came first
+    Database.getLogFile().rollback(t.getId());
+    Database.getBufferPool().transactionComplete(t.getId(), false);
+    insert(4).commit();
+
+    crash();
+    assertEquals(Arrays.asList(1, 4), contents());
+  }
+
+  /**
+   * Unit test for LogFile.rollback(): aborting a transaction that
+   * changed a page after another's commit of it, which a checkpoint
+   * wrote before that commit, keeps the committed update
+   */
+  @Test public void abortAfterCheckpointedCommit() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+    Database.getLogFile().logCheckpoint();
+    t.commit();
+    begin(2).abort();
+    assertEquals(Arrays.asList(1), contents());
+
+    crash();
+    assertEquals(Arrays.asList(1), contents());
+  }
+
+  /**
+   * Unit test for slot-level logging: an insert logs its slot rather
+   * than its page, and recovery redoes it onto the page on disk
+   */
+  @Test public void slotDeltas() throws Exception {
+    insert(1, 2).commit();
+    long size = Database.getLogFile().logFile.length();
+    insert(3).commit();
+    // BEGIN, UPDATE and COMMIT records; whole images would take 8KB
+    assertTrue(Database.getLogFile().logFile.length() - size < 200);
+
+    // lose the table, as if its writes never reached the disk
+    Database.reset();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    raf.close();
+    empty = Utility.openHeapFile(2, file);
+    Database.getLogFile().recover();
+    assertEquals(Arrays.asList(1, 2, 3), contents());
+  }
+
+  /**
+   * Unit test for record-locked pages: each transaction changing a page
+   * is logged with just its slots, so undoing a loser or an aborted
+   * transaction leaves the slots of those sharing its page alone
+   */
+  @Test public void recordLockedWriters() throws Exception {
+    Database.getBufferPool().setRecordLocking(empty.getId(), true);
+    insert(0).commit();
+    Transaction t1 = begin(1);
+    begin(2);
+    assertEquals(1, empty.numPages());
+    // writes the loser's insert along with the winner's
+    t1.commit();
+
+    crash();
+    assertEquals(Arrays.asList(0, 1), contents());
+
+    Database.getBufferPool().setRecordLocking(empty.getId(), true);
+    Transaction t3 = begin(3);
+    Transaction t4 = begin(4);
+    t4.commit();
+    t3.abort();
+    assertEquals(Arrays.asList(0, 1, 4), contents());
+
+    crash();
+    assertEquals(Arrays.asList(0, 1, 4), contents());
+  }
+
+  /** Starts a transaction that inserts the given value, leaving it running. */
+  private Transaction begin(int value) throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(value, 2));
+    return t;
+  }
+
+  /**
+   * Unit test for LSNs: the pages a transaction commits are logged with
+   * increasing LSNs, and written after one force of the log
+   */
+  @Test public void pagesShareForce() throws Exception {
+    Transaction t = new Transaction();
+    t.start();
+    for (int i = 0; i < 600; i++)
+      Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+    assertEquals(2, empty.numPages());
+
+    long forces = Database.getLogFile().getForceCount();
+    Database.getBufferPool().flushPages(t.getId());
+    assertEquals(forces + 1, Database.getLogFile().getForceCount());
+    Page p0 = Database.getBufferPool().getPage(t.getId(), new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    Page p1 = Database.getBufferPool().getPage(t.getId(), new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+    assertTrue(p0.getLSN() > 0);
+    assertTrue(p0.getLSN() != p1.getLSN());
+
+    // the log is on disk up to the pages' LSNs, so it is not forced again
+    Database.getLogFile().sync(Math.max(p0.getLSN(), p1.getLSN()));
+    assertEquals(forces + 1, Database.getLogFile().getForceCount());
+    t.commit();
+    assertEquals(forces + 2, Database.getLogFile().getForceCount());
+  }
+
+  /**
+   * Unit test for group commit: concurrent commits share a force, and
+   * are recovered after a crash
+   */
+  @Test public void groupCommit() throws Exception {
+    final LogFile log = Database.getLogFile();
+    log.setGroupCommit(true);
+    log.setGroupCommitDelay(10000000);
+    log.setGroupCommitBatch(4);
+
+    final Transaction[] txns = new Transaction[4];
+    for (int i = 0; i < txns.length; i++) {
+      txns[i] = new Transaction();
+      txns[i].start();
+    }
+    long forces = log.getForceCount();
+    Thread[] committers = new Thread[txns.length];
+    for (int i = 0; i < txns.length; i++) {
+      final Transaction t = txns[i];
+      committers[i] = new Thread() {
+        public void run() {
+          try {
+            t.commit();
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      committers[i].start();
+    }
+    for (Thread c : committers) {
+      c.join(5000);
+      assertFalse(c.isAlive());
+    }
+    // the batch filled long before the delay ran out
+    assertEquals(forces + 1, log.getForceCount());
+    for (Transaction t : txns)
+      assertFalse(log.isActive(t.getId()));
+
+    log.setGroupCommitDelay(0);
+    insert(1, 2).commit();
+    insert(3);
+    crash();
+    assertEquals(Arrays.asList(1, 2), contents());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static final int CHUNK_PAGES = 4;
+
+    private static MappedHeapFile open(File f, int columns) {
+        MappedHeapFile hf = new MappedHeapFile(f, Utility.getTupleDesc(columns), CHUNK_PAGES);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Unit test for MappedHeapFile.readPage() against the tuples encoded
+     * into the file, across several mapped chunks
+     */
+    @Test public void readAcrossChunks() throws Exception {
+        int pages = 2 * CHUNK_PAGES + 3;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(1, 992 * pages, 1000, null, tuples);
+        MappedHeapFile hf = open(f, 1);
+
+        assertEquals(pages, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Unit test for MappedHeapFile.readPage() past the end of the file
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void readPastEnd() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 1000, null, null);
+        MappedHeapFile hf = open(f, 2);
+        hf.readPage(new HeapPageId(hf.getId(), 1));
+    }
+
+    /**
+     * Unit test for MappedHeapFile.insertTuple(): pages appended to the file
+     * are readable through the remapped chunk
+     */
+    @Test public void remapOnGrowth() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504, 1000, null, null);
+        MappedHeapFile hf = open(f, 2);
+        assertEquals(1, hf.numPages());
+        assertEquals(0, ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).getNumEmptySlots());
+
+        for (int i = 0; i < 504 * 2; ++i)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(3, hf.numPages());
+        Database.getBufferPool().flushAllPages();
+
+        HeapPage last = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 2));
+        assertEquals(0, last.getNumEmptySlots());
+        Tuple first = last.iterator().next();
+        assertEquals(new IntField(504), first.getField(0));
+    }
+
+    /**
+     * Unit test for HeapPage.getBeforeImage() on a mapped page: the before
+     * image is unchanged after the modified page is written over its
+     * mapping
+     */
+    @Test public void beforeImageSurvivesFlush() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 1000, null, tuples);
+        MappedHeapFile hf = open(f, 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        hf.writePage(page);
+
+        assertEquals(495, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        HeapPage before = page.getBeforeImage();
+        assertEquals(494, before.getNumEmptySlots());
+        assertEquals(new IntField(tuples.get(0).get(1)), before.iterator().next().getField(1));
+        assertEquals(new IntField(tuples.get(0).get(1)), t.getField(1));
+    }
+
+    /**
+     * Unit test for LazyTuple on a mapped page: a tuple not yet decoded
+     * keeps the values it was read with after another copy of the page
+     * is written over the mapping
+     */
+    @Test public void lazyTupleSurvivesWrite() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 1000, null, tuples);
+        MappedHeapFile hf = open(f, 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+
+        Tuple t = ((HeapPage) hf.readPage(pid)).iterator().next();
+        HeapPage copy = (HeapPage) hf.readPage(pid);
+        copy.deleteTuple(copy.iterator().next());
+        copy.insertTuple(Utility.getHeapTuple(new int[] { -1, -2 }));
+        hf.writePage(copy);
+
+        assertEquals(new IntField(-1), ((HeapPage) hf.readPage(pid)).iterator().next().getField(0));
+        assertEquals(new IntField(tuples.get(0).get(0)), t.getField(0));
+        assertEquals(new IntField(tuples.get(0).get(1)), t.getField(1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures many tiny point transactions with two-phase locking and with
+ * optimistic concurrency control.  Each transaction reads one random page
+ * and, one time in UPDATE_EVERY, replaces a tuple on it, as the
+ * increments of TransactionTest do; it then commits.  Transactions that
+ * deadlock or fail validation are retried and counted as aborts.
+ * <p>
+ * Run with: ant runbench -Dbench=OptimisticBenchmark
+ */
+public class OptimisticBenchmark {
+    private static final int THREADS = 8;
+    private static final int PAGES = 64;
+    private static final int UPDATE_EVERY = 5;
+    private static final long MILLIS = 2000;
+
+    /** @return {committed transactions per second, aborts per second} */
+    static double[] run(boolean optimistic) throws Exception {
+        int rows = PAGES * (BufferPool.PAGE_SIZE * 8 / (Utility.getTupleDesc(2).getSize() * 8 + 1));
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, rows, 1000, null, null);
+        final HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(PAGES * 2);
+        bp.setOptimistic(optimistic);
+
+        final long[] commits = new long[THREADS];
+        final long[] aborts = new long[THREADS];
+        final long end = System.currentTimeMillis() + MILLIS;
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int me = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random rand = new Random(me);
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        PageId pid = new HeapPageId(hf.getId(), rand.nextInt(PAGES));
+                        boolean update = rand.nextInt(UPDATE_EVERY) == 0;
+                        try {
+                            HeapPage page = (HeapPage) bp.getPage(tid, pid,
+                                    update ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                            Iterator<Tuple> it = page.iterator();
+                            Tuple old = it.next();
+                            if (update) {
+                                Tuple fresh = Utility.getHeapTuple(me, 2);
+                                page.deleteTuple(old);
+                                page.insertTuple(fresh);
+                                page.markDirty(true, tid);
+                            }
+                            bp.installWrites(tid);
+                            bp.transactionComplete(tid, true);
+                            commits[me]++;
+                        } catch (Exception e) {
+                            aborts[me]++;
+                            try {
+                                bp.transactionComplete(tid, false);
+                            } catch (Exception e2) {
+                                throw new RuntimeException(e2);
+                            }
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long c = 0, a = 0;
+        for (int t = 0; t < THREADS; t++) {
+            c += commits[t];
+            a += aborts[t];
+        }
+        return new double[] { c / secs, a / secs };
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(false);
+        run(true);
+
+        System.out.printf("%d threads, %d pages, 1 in %d transactions updates%n",
+                THREADS, PAGES, UPDATE_EVERY);
+        double[] locking = run(false);
+        System.out.printf("2PL:        %8.0f txn/s %8.0f aborts/s%n", locking[0], locking[1]);
+        double[] occ = run(true);
+        System.out.printf("optimistic: %8.0f txn/s %8.0f aborts/s%n", occ[0], occ[1]);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+  private BufferPool bp;
+
+  /**
+   * Set up a one-page table of ten tuples, with optimistic transactions.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setOptimistic(true);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /** Returns the tuples of p0 as tid sees them. */
+  private List<Tuple> read(TransactionId tid) throws Exception {
+    HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      tuples.add(it.next());
+    return tuples;
+  }
+
+  /** Commits tid the way Transaction.commit does. */
+  private void commit(TransactionId tid) throws Exception {
+    bp.installWrites(tid);
+    bp.transactionComplete(tid, true);
+  }
+
+  /**
+   * Unit test for optimistic transactions: writes are buffered, so others
+   * see them only once the writer commits, and no locks are taken
+   */
+  @Test public void writesAreBuffered() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+    assertEquals(11, read(tid1).size());
+    assertEquals(10, read(tid2).size());
+    assertFalse(bp.holdsLock(tid1, p0));
+    assertFalse(bp.holdsLock(tid2, p0));
+
+    commit(tid1);
+    assertEquals(11, read(new TransactionId()).size());
+    bp.transactionComplete(tid2, false);
+
+    // installed pages are written at commit
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    assertEquals(11, read(new TransactionId()).size());
+  }
+
+  /**
+   * Unit test for optimistic transactions: a transaction fails validation
+   * if a page it read was committed since it started, even if it only
+   * read it, and its writes are discarded when it aborts
+   */
+  @Test public void validationFailsOnConflict() throws Exception {
+    read(tid1);
+    List<Tuple> seen = read(tid2);
+    bp.deleteTuple(tid2, seen.get(0));
+    bp.deleteTuple(tid1, read(tid1).get(1));
+    commit(tid1);
+
+    try {
+      bp.installWrites(tid2);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid2, false);
+    assertEquals(2, bp.getOptimisticManager().getValidationCount());
+    assertEquals(1, bp.getOptimisticManager().getFailureCount());
+
+    // a read-only transaction that overlapped a commit fails too
+    TransactionId tid3 = new TransactionId();
+    read(tid3);
+    TransactionId tid4 = new TransactionId();
+    bp.deleteTuple(tid4, read(tid4).get(0));
+    commit(tid4);
+    try {
+      bp.installWrites(tid3);
+      fail("expected validation to fail");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid3, false);
+    assertEquals(8, read(new TransactionId()).size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OptimisticTest.class);
+  }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.Random;
+
+/**
+ * Microbenchmark comparing the BufferPool page table implementations.
+ * For each pool size it fills the table, then times a mix of hits (90%)
+ * and misses that force an eviction (10%).
+ * <p>
+ * Run with: ant runbench -Dbench=PageCacheBenchmark
+ * <p>
+ * Filling BufferPoolHelper is quadratic in the pool size, so it is only
+ * measured up to HELPER_LIMIT pages.
+ */
+public class PageCacheBenchmark {
+    private static final int[] POOL_SIZES = {50, 1000, 10000, 50000, 100000, 1000000};
+    private static final int HELPER_LIMIT = 50000;
+    private static final int OPS = 200000;
+    private static final int TABLE_ID = 1;
+
+    interface Table {
+        Page get(PageId pid);
+        void put(PageId pid, Page page) throws DbException;
+    }
+
+    static Table wrap(final PageCache cache) {
+        return new Table() {
+            public Page get(PageId pid) { return cache.get(pid); }
+            public void put(PageId pid, Page page) throws DbException { cache.put(pid, page); }
+        };
+    }
+
+    static Table wrap(final BufferPoolHelper helper) {
+        return new Table() {
+            public Page get(PageId pid) { return helper.get(pid); }
+            public void put(PageId pid, Page page) throws DbException { helper.put(pid, page); }
+        };
+    }
+
+    /** @return average nanoseconds per operation */
+    static double run(Table table, int poolSize, int ops) throws DbException {
+        for (int i = 0; i < poolSize; i++) {
+            PageId pid = new HeapPageId(TABLE_ID, i);
+            table.put(pid, new TestUtil.MockPage(pid));
+        }
+
+        Random rand = new Random(0);
+        int nextPage = poolSize;
+        long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            if (rand.nextInt(10) == 0) {
+                PageId pid = new HeapPageId(TABLE_ID, nextPage++);
+                table.put(pid, new TestUtil.MockPage(pid));
+            } else {
+                // the most recently inserted half of the pool is resident
+                int pgNo = nextPage - 1 - rand.nextInt(poolSize / 2);
+                table.get(new HeapPageId(TABLE_ID, pgNo));
+            }
+        }
+        return (System.nanoTime() - start) / (double) ops;
+    }
+
+    public static void main(String[] args) throws DbException {
+        System.out.printf("%10s %18s %18s%n", "pages", "PageCache ns/op", "Helper ns/op");
+        for (int size : POOL_SIZES) {
+            run(wrap(new PageCache(size, new ClockPolicy(size))), size, OPS); // warm up
+            double cache = run(wrap(new PageCache(size, new ClockPolicy(size))), size, OPS);
+            String helper = "skipped";
+            if (size <= HELPER_LIMIT) {
+                // every helper operation is linear, so scale down the run
+                int ops = Math.max(1000, Math.min(OPS, 500000000 / size));
+                helper = String.format("%.1f", run(wrap(new BufferPoolHelper(size)), size, ops));
+            }
+            System.out.printf("%10d %18.1f %18s%n", size, cache, helper);
+        }
+    }
+}
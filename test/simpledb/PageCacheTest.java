@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageCacheTest extends SimpleDbTestBase {
+
+    private static Page page(int pgNo) {
+        return new TestUtil.MockPage(new HeapPageId(1, pgNo));
+    }
+
+    /**
+     * Unit test for PageCache.get() and PageCache.put()
+     */
+    @Test public void getPut() throws Exception {
+        PageCache cache = new PageCache(4, new ClockPolicy(4));
+        Page p0 = page(0);
+        cache.put(p0.getId(), p0);
+
+        assertSame(p0, cache.get(new HeapPageId(1, 0)));
+        assertNull(cache.get(new HeapPageId(1, 1)));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Unit test for PageCache.putIfAbsent(): the first resident copy wins
+     */
+    @Test public void putIfAbsent() throws Exception {
+        PageCache cache = new PageCache(4, new ClockPolicy(4));
+        Page first = page(0);
+        Page second = page(0);
+
+        assertSame(first, cache.putIfAbsent(first.getId(), first));
+        assertSame(first, cache.putIfAbsent(second.getId(), second));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Unit test for eviction: a full cache evicts an unreferenced page
+     * and keeps recently accessed ones
+     */
+    @Test public void evictsUnreferenced() throws Exception {
+        PageCache cache = new PageCache(3, new ClockPolicy(3));
+        for (int i = 0; i < 3; i++)
+            cache.put(new HeapPageId(1, i), page(i));
+
+        // first sweep clears every reference bit and evicts page 0
+        cache.put(new HeapPageId(1, 3), page(3));
+        assertNull(cache.get(new HeapPageId(1, 0)));
+
+        // page 1 is referenced again, so page 2 is the next victim
+        cache.get(new HeapPageId(1, 1));
+        cache.put(new HeapPageId(1, 4), page(4));
+        assertNull(cache.get(new HeapPageId(1, 2)));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * Unit test for eviction: dirty pages are never evicted
+     */
+    @Test public void neverEvictsDirty() throws Exception {
+        PageCache cache = new PageCache(2, new ClockPolicy(2));
+        Page p0 = page(0);
+        Page p1 = page(1);
+        p0.markDirty(true, new TransactionId());
+        cache.put(p0.getId(), p0);
+        cache.put(p1.getId(), p1);
+
+        cache.put(new HeapPageId(1, 2), page(2));
+        assertSame(p0, cache.get(p0.getId()));
+        assertNull(cache.get(p1.getId()));
+
+        cache.get(new HeapPageId(1, 2)).markDirty(true, new TransactionId());
+        try {
+            cache.put(new HeapPageId(1, 3), page(3));
+            fail("expected DbException when every page is dirty");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for eviction: a page whose latch is held is not evicted
+     */
+    @Test public void neverEvictsLatched() throws Exception {
+        PageCache cache = new PageCache(2, new ClockPolicy(2));
+        Page p0 = page(0);
+        Page p1 = page(1);
+        cache.put(p0.getId(), p0);
+        cache.put(p1.getId(), p1);
+
+        // a page being read is latched shared, which blocks the eviction
+        p0.latch().readLock().lock();
+        try {
+            cache.put(new HeapPageId(1, 2), page(2));
+            assertSame(p0, cache.get(p0.getId()));
+            assertNull(cache.get(p1.getId()));
+        } finally {
+            p0.latch().readLock().unlock();
+        }
+    }
+
+    /**
+     * Unit test for the PageCache hit and miss counters
+     */
+    @Test public void hitRatio() throws Exception {
+        PageCache cache = new PageCache(2, new ClockPolicy(2));
+        cache.put(new HeapPageId(1, 0), page(0));
+
+        cache.get(new HeapPageId(1, 0));
+        cache.get(new HeapPageId(1, 0));
+        cache.get(new HeapPageId(1, 0));
+        cache.get(new HeapPageId(1, 1));
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRatio(), 1e-9);
+
+        cache.resetStats();
+        assertEquals(0, cache.getHits());
+        assertEquals(0.0, cache.getHitRatio(), 1e-9);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCacheTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws IOException {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for PageDelta.diff() and apply(): only the changed slots
+     * are in the delta, and it turns either image into the other
+     */
+    @Test public void diffAndApply() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = after.iterator();
+        after.deleteTuple(it.next());
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 8 });
+        after.insertTuple(t);
+        after.insertTuple(Utility.getHeapTuple(new int[] { 9, 10 }));
+
+        PageDelta delta = PageDelta.diff(before, after);
+        // the deleted slot was reused by the first insert
+        assertEquals(2, delta.numSlots());
+        assertEquals(pid, delta.getId());
+        assertArrayEquals(after.getPageData(), delta.apply(before.getPageData(), false));
+        assertArrayEquals(before.getPageData(), delta.apply(after.getPageData(), true));
+        assertArrayEquals(before.getPageData(), delta.inverse().apply(after.getPageData(), false));
+
+        // applying a delta twice does no harm
+        byte[] data = delta.apply(before.getPageData(), false);
+        assertArrayEquals(after.getPageData(), delta.apply(data, false));
+
+        assertEquals(0, PageDelta.diff(after, after).numSlots());
+    }
+
+    /**
+     * Unit test for PageDelta.write() and read(): a delta holds the
+     * changed tuples' bytes, and little else
+     */
+    @Test public void writeAndRead() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PageDelta.diff(before, after).write(new DataOutputStream(bytes));
+        // ids, tuple size and count, then a slot, flags and 8 bytes
+        assertTrue(bytes.size() < 40);
+
+        PageDelta delta = PageDelta.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(pid, delta.getId());
+        assertArrayEquals(after.getPageData(), delta.apply(before.getPageData(), false));
+        assertArrayEquals(before.getPageData(), delta.apply(after.getPageData(), true));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,52 @@
+package simpledb;
+
+import java.io.File;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures a full scan of a table whose pages each take a fixed time to
+ * read, as on a cold disk, with and without read-ahead.  The scan reads
+ * the first field of every tuple.
+ * <p>
+ * Run with: ant runbench -Dbench=ReadAheadBenchmark
+ */
+public class ReadAheadBenchmark {
+    private static final int PAGES = 400;
+    private static final long READ_NANOS = 200000;
+
+    /** @return milliseconds for one scan through a freshly reset pool */
+    static double run(HeapFile hf, int readAhead) throws Exception {
+        BufferPool bp = Database.resetBufferPool(2 * PAGES);
+        bp.setReadAheadLimit(readAhead);
+        TransactionId tid = new TransactionId();
+
+        long start = System.nanoTime();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        long sum = 0;
+        while (it.hasNext())
+            sum += ((IntField) it.next().getField(0)).getValue();
+        it.close();
+        double ms = (System.nanoTime() - start) / 1e6;
+
+        bp.transactionComplete(tid);
+        if (sum == 42)
+            System.out.print("");
+        return ms;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, null);
+        HeapFile hf = new TestUtil.SlowHeapFile(f, Utility.getTupleDesc(2), READ_NANOS);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+
+        // warm up the JIT
+        run(hf, 0);
+        run(hf, BufferPool.DEFAULT_READ_AHEAD);
+
+        System.out.printf("%d pages, %d us per read%n", PAGES, READ_NANOS / 1000);
+        System.out.printf("no read-ahead: %8.1f ms%n", run(hf, 0));
+        System.out.printf("read-ahead:    %8.1f ms%n", run(hf, BufferPool.DEFAULT_READ_AHEAD));
+    }
+}
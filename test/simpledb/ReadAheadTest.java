@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 40;
+
+    private TransactionId tid;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        bp = Database.resetBufferPool(200);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static HeapFile slowFile(long readNanos) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, null);
+        HeapFile hf = new TestUtil.SlowHeapFile(f, Utility.getTupleDesc(2), readNanos);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Unit test for BufferPool.newReadAhead(): pools and tables too small
+     * for read-ahead, and a disabled limit
+     */
+    @Test public void newReadAhead() throws Exception {
+        assertNotNull(bp.newReadAhead(1, PAGES));
+        assertNull(bp.newReadAhead(1, 2));
+        assertNull(Database.resetBufferPool(4).newReadAhead(1, PAGES));
+        bp.setReadAheadLimit(0);
+        assertNull(bp.newReadAhead(1, PAGES));
+    }
+
+    /**
+     * Unit test for HeapIterator with read-ahead: a scan is served from
+     * prefetched pages, and leaves nothing staged
+     */
+    @Test public void scanUsesPrefetchedPages() throws Exception {
+        HeapFile hf = slowFile(100000);
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+
+        assertEquals(504 * PAGES, count);
+        Prefetcher prefetcher = bp.getPrefetcher();
+        assertTrue(prefetcher.getHitCount() > PAGES / 2);
+        assertEquals(0, prefetcher.numStaged());
+    }
+
+    /**
+     * Unit test for BufferPool.discardPage(): a staged page that has been
+     * rewritten on disk is not returned by getPage
+     */
+    @Test public void discardInvalidates() throws Exception {
+        HeapFile hf = slowFile(0);
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        ReadAhead ra = bp.newReadAhead(hf.getId(), PAGES);
+        ra.advance(0);
+        assertTrue(bp.getPrefetcher().isStaged(pid));
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        bp.discardPage(pid);
+        assertFalse(bp.getPrefetcher().isStaged(pid));
+
+        page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(1, page.getNumEmptySlots());
+        ra.close();
+    }
+
+    /**
+     * Unit test for ReadAhead window adaptation: a scan that outruns the
+     * disk reads further ahead than one that does a lot of work per page
+     */
+    @Test public void windowAdapts() throws Exception {
+        HeapFile hf = slowFile(2000000);
+
+        ReadAhead ra = bp.newReadAhead(hf.getId(), PAGES);
+        for (int i = 0; i < PAGES / 2; i++) {
+            ra.advance(i);
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        assertTrue(ra.getWindow() > ReadAhead.MIN_WINDOW);
+
+        for (int i = PAGES / 2; i < PAGES; i++) {
+            ra.advance(i);
+            Iterator<Tuple> tuples = ((HeapPage) bp.getPage(tid,
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY)).iterator();
+            while (tuples.hasNext())
+                tuples.next();
+            Thread.sleep(10);
+        }
+        assertEquals(ReadAhead.MIN_WINDOW, ra.getWindow());
+        ra.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures concurrent writers of a one-page table, as on a table of hot
+ * counters, with page locking and with record locking.  Each thread owns
+ * one tuple and runs transactions that delete it, work for a moment with
+ * their locks held, insert its replacement and commit.  With page locks
+ * the transactions run one at a time; with record locks they overlap.
+ * <p>
+ * Run with: ant runbench -Dbench=RecordLockingBenchmark
+ */
+public class RecordLockingBenchmark {
+    private static final int THREADS = 8;
+    private static final long MILLIS = 2000;
+    private static final long WORK_MILLIS = 1;
+
+    /** @return committed transactions per second */
+    static double run(boolean recordLocks) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, THREADS, 1000, null, null);
+        final HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(hf.getId(), recordLocks);
+
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = hf.iterator(reader);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        bp.transactionComplete(reader);
+
+        final long[] counts = new long[THREADS];
+        final long end = System.currentTimeMillis() + MILLIS;
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int me = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Tuple mine = tuples.get(me);
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            bp.deleteTuple(tid, mine);
+                            Thread.sleep(WORK_MILLIS);
+                            Tuple fresh = Utility.getHeapTuple(me, 2);
+                            bp.insertTuple(tid, hf.getId(), fresh);
+                            bp.transactionComplete(tid, true);
+                            mine = fresh;
+                            counts[me]++;
+                        } catch (Exception e) {
+                            try {
+                                bp.transactionComplete(tid, false);
+                            } catch (Exception e2) {
+                                throw new RuntimeException(e2);
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long total = 0;
+        for (long c : counts)
+            total += c;
+        return total / secs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(false);
+        run(true);
+
+        System.out.printf("%d threads, %d ms of work per transaction%n", THREADS, WORK_MILLIS);
+        System.out.printf("page locks:   %8.0f txn/s%n", run(false));
+        System.out.printf("record locks: %8.0f txn/s%n", run(true));
+    }
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class RecordLockingTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+  private BufferPool bp;
+
+  /**
+   * Set up a one-page table of ten tuples, with record locking enabled.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setRecordLocking(empty.getId(), true);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /** Returns the tuples of p0, read by a transaction that then completes. */
+  private List<Tuple> readPage() throws Exception {
+    TransactionId tid = new TransactionId();
+    HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      tuples.add(it.next());
+    bp.transactionComplete(tid);
+    return tuples;
+  }
+
+  /** Returns the first field of each tuple of p0, as stored on disk. */
+  private Set<Integer> valuesOnDisk() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    Set<Integer> values = new HashSet<Integer>();
+    for (Tuple t : readPage())
+      values.add(((IntField) t.getField(0)).getValue());
+    return values;
+  }
+
+  /**
+   * Unit test for record locking: two transactions delete different
+   * tuples of one page without waiting for each other, and aborting one
+   * undoes only its own delete
+   */
+  @Test public void writersShareAPage() throws Exception {
+    List<Tuple> tuples = readPage();
+    bp.deleteTuple(tid1, tuples.get(0));
+    bp.deleteTuple(tid2, tuples.get(1));
+    assertTrue(bp.getLockManager().holdsRecordLock(tid1, tuples.get(0).getRecordId()));
+    assertFalse(bp.getLockManager().holdsRecordLock(tid1, tuples.get(1).getRecordId()));
+    assertFalse(bp.holdsLock(tid1, p0));
+
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, false);
+
+    Set<Integer> values = valuesOnDisk();
+    assertEquals(9, values.size());
+    assertFalse(values.contains(0));
+    assertTrue(values.contains(1));
+  }
+
+  /**
+   * Unit test for record locking: an insert does not reuse a slot whose
+   * tuple was deleted by a transaction that has not completed, so the
+   * delete can still be undone
+   */
+  @Test public void insertSkipsUncommittedDelete() throws Exception {
+    Tuple victim = readPage().get(0);
+    bp.deleteTuple(tid1, victim);
+
+    Tuple t = Utility.getHeapTuple(100, 2);
+    bp.insertTuple(tid2, empty.getId(), t);
+    assertEquals(10, t.getRecordId().tupleno());
+
+    bp.transactionComplete(tid2, true);
+    bp.transactionComplete(tid1, false);
+
+    Set<Integer> values = valuesOnDisk();
+    assertEquals(11, values.size());
+    assertTrue(values.contains(0));
+    assertTrue(values.contains(100));
+  }
+
+  /**
+   * Unit test for record locking: a reader of the page waits for a
+   * transaction that changed one of its records
+   */
+  @Test public void readerWaitsForRecordWriter() throws Exception {
+    bp.deleteTuple(tid1, readPage().get(0));
+
+    final BufferPool fBp = bp;
+    final boolean[] read = new boolean[1];
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          fBp.getPage(tid2, p0, Permissions.READ_ONLY);
+          read[0] = true;
+        } catch (Exception e) {
+          // checked below
+        }
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+    t.join(100);
+    assertFalse(read[0]);
+
+    bp.transactionComplete(tid1, true);
+    t.join(1000);
+    assertTrue(read[0]);
+    bp.transactionComplete(tid2, true);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RecordLockingTest.class);
+  }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.File;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Measures an ingest transaction stream running beside reporting scans of
+ * the same table, with locked reads and with snapshot reads.  The ingest
+ * thread commits one insert per transaction; the reporting threads scan
+ * the whole table, one scan per transaction.  With locked reads an insert
+ * waits for the scans holding the page it needs, and a scan waits for
+ * the insert; with snapshot reads neither waits.
+ * <p>
+ * Run with: ant runbench -Dbench=SnapshotReadsBenchmark
+ */
+public class SnapshotReadsBenchmark {
+    private static final int READERS = 2;
+    private static final int ROWS = 5000;
+    private static final long MILLIS = 2000;
+
+    /** @return {inserts per second, scans per second} */
+    static double[] run(boolean snapshots) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, 1000, null, null);
+        final HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setSnapshotReads(snapshots);
+
+        final long[] inserts = new long[1];
+        final long[] scans = new long[READERS];
+        final long end = System.currentTimeMillis() + MILLIS;
+        Thread[] threads = new Thread[READERS + 1];
+        threads[0] = new Thread() {
+            public void run() {
+                int i = 0;
+                while (System.currentTimeMillis() < end) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i++, 2));
+                        bp.transactionComplete(tid, true);
+                        inserts[0]++;
+                    } catch (Exception e) {
+                        abort(bp, tid);
+                    }
+                }
+            }
+        };
+        for (int r = 0; r < READERS; r++) {
+            final int me = r;
+            threads[r + 1] = new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            DbFileIterator it = hf.iterator(tid);
+                            it.open();
+                            while (it.hasNext())
+                                it.next();
+                            it.close();
+                            bp.transactionComplete(tid, true);
+                            scans[me]++;
+                        } catch (Exception e) {
+                            abort(bp, tid);
+                        }
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        long totalScans = 0;
+        for (long c : scans)
+            totalScans += c;
+        return new double[] { inserts[0] / secs, totalScans / secs };
+    }
+
+    private static void abort(BufferPool bp, TransactionId tid) {
+        try {
+            bp.transactionComplete(tid, false);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        // let the transaction that killed this one finish
+        Thread.yield();
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run(false);
+        run(true);
+
+        System.out.printf("1 ingest thread, %d reporting threads, %d rows%n", READERS, ROWS);
+        double[] locked = run(false);
+        System.out.printf("locked reads:   %8.0f inserts/s %8.1f scans/s%n", locked[0], locked[1]);
+        double[] snapshot = run(true);
+        System.out.printf("snapshot reads: %8.0f inserts/s %8.1f scans/s%n", snapshot[0], snapshot[1]);
+    }
+}
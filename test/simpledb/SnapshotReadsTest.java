@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SnapshotReadsTest extends TestUtil.CreateHeapFile {
+  private PageId p0;
+  private TransactionId tid1, tid2;
+  private BufferPool bp;
+
+  /**
+   * Set up a one-page table of ten tuples, with snapshot reads on.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 10; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    bp.setSnapshotReads(true);
+    this.tid1 = new TransactionId();
+    this.tid2 = new TransactionId();
+  }
+
+  /** Returns the tuples of p0 as tid sees them. */
+  private List<Tuple> read(TransactionId tid) throws Exception {
+    HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      tuples.add(it.next());
+    return tuples;
+  }
+
+  /**
+   * Unit test for snapshot reads: a reader neither waits for nor sees
+   * another transaction's uncommitted insert, and takes no lock
+   */
+  @Test public void readerIgnoresUncommittedWrite() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+    assertEquals(10, read(tid2).size());
+    assertFalse(bp.holdsLock(tid2, p0));
+    assertEquals(11, read(tid1).size());
+    bp.transactionComplete(tid1, true);
+    bp.transactionComplete(tid2, true);
+  }
+
+  /**
+   * Unit test for snapshot reads: a transaction keeps seeing the page as
+   * of its snapshot after another transaction commits a change to it,
+   * and the old version is dropped once no snapshot needs it
+   */
+  @Test public void snapshotIsStable() throws Exception {
+    assertEquals(10, read(tid2).size());
+    bp.deleteTuple(tid1, read(tid1).get(0));
+    bp.transactionComplete(tid1, true);
+    assertEquals(1, bp.getVersionStore().numVersions());
+
+    assertEquals(10, read(tid2).size());
+    TransactionId tid3 = new TransactionId();
+    assertEquals(9, read(tid3).size());
+
+    bp.transactionComplete(tid2, true);
+    bp.transactionComplete(tid3, true);
+    assertEquals(0, bp.getVersionStore().numVersions());
+    assertEquals(0, bp.getVersionStore().numSnapshots());
+  }
+
+  /**
+   * Unit test for snapshot reads: a transaction that writes a page
+   * another transaction committed after its snapshot is aborted
+   */
+  @Test public void firstCommitterWins() throws Exception {
+    List<Tuple> seen = read(tid2);
+    bp.deleteTuple(tid1, read(tid1).get(0));
+    bp.transactionComplete(tid1, true);
+
+    try {
+      bp.deleteTuple(tid2, seen.get(1));
+      fail("expected a write conflict");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid2, false);
+
+    // a transaction whose snapshot includes the commit may write
+    TransactionId tid3 = new TransactionId();
+    bp.deleteTuple(tid3, read(tid3).get(0));
+    bp.transactionComplete(tid3, true);
+    assertEquals(8, read(new TransactionId()).size());
+  }
+
+  /**
+   * Unit test for snapshot reads: a commit of a page a checkpoint wrote
+   * before the commit is seen by later snapshots
+   */
+  @Test public void commitAfterCheckpoint() throws Exception {
+    bp.insertTuple(tid1, empty.getId(), Utility.getHeapTuple(100, 2));
+    Database.getLogFile().logCheckpoint();
+    bp.transactionComplete(tid1, true);
+    assertEquals(11, read(tid2).size());
+    bp.transactionComplete(tid2, true);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadsTest.class);
+  }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.Assert.*;
 
@@ -241,6 +242,75 @@ public class TestUtil {
 		}
     }
 
+    /**
+     * HeapFile that takes a fixed time to read each page, standing in for a
+     * cold disk in read-ahead tests.
+     */
+    public static class SlowHeapFile extends HeapFile {
+        private static final long serialVersionUID = 1L;
+        private final long readNanos;
+
+        public SlowHeapFile(File f, TupleDesc td, long readNanos) {
+            super(f, td);
+            this.readNanos = readNanos;
+        }
+
+        public Page readPage(PageId pid) {
+            long end = System.nanoTime() + readNanos;
+            for (long left = readNanos; left > 0; left = end - System.nanoTime())
+                java.util.concurrent.locks.LockSupport.parkNanos(left);
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Mock Page class for unit testing the page table; it has no contents
+     * and only tracks its dirty state.
+     */
+    public static class MockPage implements Page {
+        private final PageId pid;
+        private TransactionId dirtier;
+        private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+
+        public MockPage(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public TransactionId isDirty() {
+            return dirtier;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+            dirtier = dirty ? tid : null;
+        }
+
+        public byte[] getPageData() {
+            return new byte[0];
+        }
+
+        public Page getBeforeImage() {
+            return this;
+        }
+
+        public void setBeforeImage() {
+        }
+
+        public long getLSN() {
+            return 0;
+        }
+
+        public void setLSN(long lsn) {
+        }
+
+        public ReentrantReadWriteLock latch() {
+            return latch;
+        }
+    }
+
     /**
      * Mock SeqScan class for unit testing.
      */
@@ -379,6 +449,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            FreeSpaceMap.sidecarFor(emptyFile).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
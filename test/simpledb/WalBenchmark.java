@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.io.File;
+
+/**
+ * Measures transactions that change several pages, one at a time, to
+ * show the cost of writing the log.  Each transaction inserts a tuple
+ * into each of TABLES tables, so it commits TABLES pages, each logged
+ * as the one slot changed on it.
+ * <p>
+ * Run with: ant runbench -Dbench=WalBenchmark
+ */
+public class WalBenchmark {
+    private static final int TABLES = 8;
+    private static final long MILLIS = 2000;
+
+    /** @return {committed transactions per second, log forces per commit,
+     *  log bytes per commit} */
+    static double[] run() throws Exception {
+        Database.reset();
+        HeapFile[] tables = new HeapFile[TABLES];
+        for (int t = 0; t < TABLES; t++) {
+            File f = File.createTempFile("wal", ".dat");
+            f.deleteOnExit();
+            FreeSpaceMap.sidecarFor(f).deleteOnExit();
+            tables[t] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        LogFile log = Database.getLogFile();
+        long forcesBefore = log.getForceCount();
+
+        long commits = 0;
+        long end = System.currentTimeMillis() + MILLIS;
+        long start = System.nanoTime();
+        while (System.currentTimeMillis() < end) {
+            Transaction txn = new Transaction();
+            txn.start();
+            for (HeapFile table : tables)
+                Database.getBufferPool().insertTuple(txn.getId(), table.getId(),
+                        Utility.getHeapTuple((int) commits, 2));
+            txn.commit();
+            commits++;
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        // the log was emptied by the first record appended
+        long bytes = log.logFile.length() - LogFile.LONG_SIZE;
+        return new double[] { commits / secs,
+                              (double) (log.getForceCount() - forcesBefore) / commits,
+                              (double) bytes / commits };
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up the JIT
+        run();
+
+        double[] r = run();
+        System.out.printf("%d pages per transaction: %8.0f txn/s %6.2f forces/txn %8.0f log bytes/txn%n",
+                TABLES, r[0], r[1], r[2]);
+    }
+}
@@ -105,6 +105,34 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Verifies that a scan larger than the pool reads through a private
+     * ring and leaves the other cached pages resident. */
+    @Test public void testScanRing() throws IOException, DbException, TransactionAbortedException {
+        final int POOL = 20;
+
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(1, 992*5, 1000, null, hotTuples);
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, 992*2*POOL, 1000, null, bigTuples);
+        BufferPool bp = Database.resetBufferPool(POOL);
+
+        // cache the small table, then scan the big one
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        SystemTestUtil.matchTuples(big, bigTuples);
+
+        // every page of the small table is still cached
+        bp.resetCacheStats();
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(0, bp.getMissCount());
+
+        // without a ring, the big scan floods the pool
+        bp.setScanRingThreshold(Double.MAX_VALUE);
+        SystemTestUtil.matchTuples(big, bigTuples);
+        bp.resetCacheStats();
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertTrue(bp.getMissCount() > 0);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(ScanTest.class);
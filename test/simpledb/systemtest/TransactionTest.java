@@ -226,6 +226,12 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
+    @Test public void testTenOptimisticThreads()
+    throws IOException, DbException, TransactionAbortedException {
+        Database.getBufferPool().setOptimistic(true);
+        validateTransactions(10);
+    }
+
     @Test public void testAllDirtyFails()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data